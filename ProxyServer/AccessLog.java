@@ -0,0 +1,126 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the request log from one background thread.
+ * Requests only put their entry into a ring buffer, the writer thread
+ * appends whole batches to the file and flushes every flushInterval,
+ * so nobody waits for a file open or a disk write any more.
+ * When the buffer is full the entry is dropped (and counted), or with
+ * blockWhenFull the request waits for room.
+ */
+class AccessLog implements Runnable {
+	// a batch is written before we look at the clock again
+	private static final int BATCH = 256;
+
+	private final RingBuffer<String> buffer;
+	private final Writer writer;
+	private final long flushInterval;
+	private final boolean blockWhenFull;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	public AccessLog(String fileName, int capacity, long flushInterval, boolean blockWhenFull) throws IOException {
+		this.buffer = new RingBuffer<>(capacity);
+		//true = append file
+		this.writer = new BufferedWriter(new FileWriter(fileName, true), 256 * 1024);
+		this.flushInterval = flushInterval;
+		this.blockWhenFull = blockWhenFull;
+		this.thread = new Thread(this, "access-log");
+		thread.setDaemon(true);
+		thread.start();
+		// write out what is still buffered when the proxy is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+	}
+
+	public static AccessLog fromConfig(ProxyConfig config) throws IOException {
+		return new AccessLog("log.txt", config.getInt("log-buffer", 64 * 1024),
+				config.getInt("log-flush-interval", 1000),
+				config.get("log-overflow", "drop").equalsIgnoreCase("block"));
+	}
+
+	/**
+	 * Queues one entry, never touches the file.
+	 */
+	public void append(String entry) {
+		while (!buffer.offer(entry)) {
+			if (!blockWhenFull || !running) {
+				dropped.incrementAndGet();
+				return;
+			}
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+		}
+	}
+
+	/**
+	 * Entries lost because the buffer was full.
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public void run() {
+		long lastFlush = System.nanoTime();
+		boolean dirty = false;
+		while (running) {
+			try {
+				int written = drain();
+				dirty |= written > 0;
+				long now = System.nanoTime();
+				if (dirty && now - lastFlush >= TimeUnit.MILLISECONDS.toNanos(flushInterval)) {
+					writer.flush();
+					dirty = false;
+					lastFlush = now;
+				}
+				if (written == 0) {
+					// nothing to do, dont spin
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		// stopped, this thread is the only one polling the buffer so it writes the rest
+		try {
+			while (drain() > 0) {
+				// keep going until the buffer is empty
+			}
+			writer.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// writes up to one batch, returns how many entries
+	private int drain() throws IOException {
+		int count = 0;
+		String entry;
+		while (count < BATCH && (entry = buffer.poll()) != null) {
+			writer.write(entry);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Stops the writer and waits until it wrote everything still queued.
+	 * The ring buffer has one consumer, so the rest is not drained here
+	 * even when the disk is slow.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
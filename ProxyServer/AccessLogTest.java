@@ -0,0 +1,36 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Checks that closing the access log writes every entry queued before,
+ * once, also when the buffer is still full of them.
+ *
+ * Run: java AccessLogTest, exits with 1 if a check failed.
+ */
+public class AccessLogTest {
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("access-log-test");
+		try {
+			Path file = dir.resolve("log.txt");
+			// a long flush interval, only close writes the file out
+			AccessLog log = new AccessLog(file.toString(), 64 * 1024, 60_000, true);
+			for (int i = 0; i < 50_000; i++) {
+				log.append("entry " + i + "\n");
+			}
+			log.close();
+			List<String> lines = Files.readAllLines(file);
+			boolean inOrder = lines.size() == 50_000;
+			for (int i = 0; inOrder && i < lines.size(); i++) {
+				inOrder = lines.get(i).equals("entry " + i);
+			}
+			Checks.check(inOrder, "every entry is written once and in order, got " + lines.size());
+			Checks.check(log.dropped() == 0, "nothing is dropped");
+			// a second close, from the shutdown hook, does not wait forever
+			log.close();
+		} finally {
+			Checks.delete(dir);
+		}
+		Checks.exit();
+	}
+}
@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Offline benchmark of the whole proxy, to check a change for regressions
+ * without a browser or the internet.
+ * Starts the stand-in origin and a proxy in its own JVM, warms the cache
+ * for --warmup seconds and then runs each client level for --duration
+ * seconds. Every row has throughput, p50/p99/p999 latency, the hit ratio
+ * the proxy really reached and the allocation rate of the proxy JVM,
+ * read from its /__metrics before and after the run.
+ *
+ * Run: java Benchmark --clients=64,256,1024 --duration=20
+ * Workload options:
+ *   --objects=10000    distinct cacheable objects
+ *   --zipf=0.99        popularity skew, object k is asked with weight 1/k^s, 0 for uniform
+ *   --sizes=4k         object sizes: 4k for all, 1k-64k uniform, lognormal:8k:1.0 (median and sigma)
+ *   --hit-ratio=0.9    share of requests for the objects, the rest are unique uncacheable urls
+ *   --origin-delay=5   ms the origin waits before answering
+ *   --seed=42          same seed, same sizes and request sequence
+ * --warmup=10 --proxy-port=9180 --origin-port=9181
+ * --proxy-args="--engine=nio --cache-size=512m" is passed on to the proxy,
+ * --proxy-jvm="-Xmx1g" to its JVM.
+ */
+public class Benchmark {
+	public static void main(String[] args) throws Exception {
+		ProxyConfig config = ProxyConfig.fromArgs(args);
+		String[] levels = config.get("clients", "64,256,1024").split(",");
+		long duration = config.getInt("duration", 20) * 1000L;
+		long warmup = config.getInt("warmup", 10) * 1000L;
+		int proxyPort = config.getInt("proxy-port", 9180);
+		int originPort = config.getInt("origin-port", 9181);
+		double targetHitRatio = Double.parseDouble(config.get("hit-ratio", "0.9"));
+
+		OriginStub origin = new OriginStub(originPort, config.getInt("origin-delay", 5), true);
+		origin.start();
+		Workload workload = new Workload("http://127.0.0.1:" + originPort, config.getInt("objects", 10000),
+				Double.parseDouble(config.get("zipf", "0.99")), Sizes.parse(config.get("sizes", "4k")), targetHitRatio,
+				Long.parseLong(config.get("seed", "42")));
+		LoadGenerator generator = new LoadGenerator(new InetSocketAddress("127.0.0.1", proxyPort), workload);
+		Process proxy = ProxyProcess.start(proxyPort, ProxyProcess.split(config.get("proxy-jvm", "")),
+				ProxyProcess.split(config.get("proxy-args", "")));
+		try {
+			// fills the cache and lets the JIT finish before anything is measured
+			if (warmup > 0) {
+				generator.run(Integer.parseInt(levels[0].trim()), warmup);
+			}
+			System.out.printf("workload: %d objects, zipf %s, sizes %s, target hit ratio %.2f%n", workload.objects(),
+					config.get("zipf", "0.99"), config.get("sizes", "4k"), targetHitRatio);
+			System.out.printf("%8s %10s %9s %9s %9s %9s %7s %11s %11s %8s %8s%n", "clients", "req/s", "MB/s", "p50 ms",
+					"p99 ms", "p999 ms", "hits", "alloc MB/s", "alloc KB/r", "rejected", "errors");
+			for (String level : levels) {
+				long originBefore = origin.requests();
+				long allocatedBefore = allocatedBytes(proxyPort);
+				LoadGenerator.Result result = generator.run(Integer.parseInt(level.trim()), duration);
+				long allocated = allocatedBytes(proxyPort) - allocatedBefore;
+				long misses = origin.requests() - originBefore;
+				double seconds = result.elapsedNanos / 1e9;
+				double hitRatio = result.count == 0 ? 0 : Math.max(0, 1 - (double) misses / result.count);
+				System.out.printf("%8s %10.0f %9.1f %9.2f %9.2f %9.2f %7.3f %11.1f %11.1f %8d %8d%n", level.trim(),
+						result.throughput(), result.bytes / seconds / (1024 * 1024), result.percentile(50),
+						result.percentile(99), result.percentile(99.9), hitRatio,
+						allocated / seconds / (1024 * 1024), result.count == 0 ? 0 : allocated / 1024.0 / result.count,
+						result.rejected, result.errors);
+			}
+		} finally {
+			proxy.destroy();
+			proxy.waitFor(10, TimeUnit.SECONDS);
+			origin.stop();
+		}
+	}
+
+	// the proxy's own count, so the load generator and origin in this JVM are not in it
+	private static long allocatedBytes(int proxyPort) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL("http://127.0.0.1:" + proxyPort + "/__metrics").openConnection();
+		try (InputStream in = con.getInputStream()) {
+			String metrics = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+			for (String line : metrics.split("\n")) {
+				if (line.startsWith("proxy_heap_allocated_bytes_total ")) {
+					return Long.parseLong(line.substring(line.indexOf(' ') + 1).trim());
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * The urls the clients ask for. Only called from the load generator's
+	 * selector thread, so one Random is enough.
+	 */
+	static class Workload implements Supplier<String> {
+		private final String base;
+		private final double[] cumulative;
+		private final int[] sizes;
+		private final Sizes missSizes;
+		private final double hitRatio;
+		private final Random random;
+		private long misses;
+
+		Workload(String base, int objects, double zipf, Sizes sizes, double hitRatio, long seed) {
+			this.base = base;
+			this.hitRatio = hitRatio;
+			this.missSizes = sizes;
+			this.random = new Random(seed);
+			// object k is asked with weight 1/k^s, picked by binary search in the running sum
+			this.cumulative = new double[objects];
+			double sum = 0;
+			for (int k = 0; k < objects; k++) {
+				sum += 1 / Math.pow(k + 1, zipf);
+				cumulative[k] = sum;
+			}
+			for (int k = 0; k < objects; k++) {
+				cumulative[k] /= sum;
+			}
+			// an object keeps its size, whatever the order it is asked in
+			this.sizes = new int[objects];
+			for (int k = 0; k < objects; k++) {
+				this.sizes[k] = sizes.next(random);
+			}
+		}
+
+		int objects() {
+			return sizes.length;
+		}
+
+		@Override
+		public String get() {
+			if (random.nextDouble() >= hitRatio) {
+				// never asked again and not stored, a miss every time
+				return base + "/obj/miss-" + (misses++) + "?size=" + missSizes.next(random) + "&store=no";
+			}
+			int index = Arrays.binarySearch(cumulative, random.nextDouble());
+			int k = Math.min(sizes.length - 1, index >= 0 ? index : -index - 1);
+			return base + "/obj/" + k + "?size=" + sizes[k];
+		}
+	}
+
+	/**
+	 * Object size distribution from --sizes.
+	 */
+	static class Sizes {
+		private final String kind;
+		private final long a;
+		private final long b;
+		private final double sigma;
+
+		private Sizes(String kind, long a, long b, double sigma) {
+			this.kind = kind;
+			this.a = a;
+			this.b = b;
+			this.sigma = sigma;
+		}
+
+		static Sizes parse(String spec) {
+			spec = spec.trim().toLowerCase();
+			if (spec.startsWith("lognormal:")) {
+				String[] parts = spec.split(":");
+				return new Sizes("lognormal", ProxyConfig.parseBytes(parts[1]), 0,
+						parts.length > 2 ? Double.parseDouble(parts[2]) : 1.0);
+			}
+			int dash = spec.indexOf('-');
+			if (dash > 0) {
+				return new Sizes("uniform", ProxyConfig.parseBytes(spec.substring(0, dash)),
+						ProxyConfig.parseBytes(spec.substring(dash + 1)), 0);
+			}
+			return new Sizes("fixed", ProxyConfig.parseBytes(spec), 0, 0);
+		}
+
+		int next(Random random) {
+			long size;
+			switch (kind) {
+			case "lognormal":
+				// a is the median, most objects are small and a few are very big
+				size = Math.round(a * Math.exp(sigma * random.nextGaussian()));
+				break;
+			case "uniform":
+				size = a + (long) (random.nextDouble() * (b - a + 1));
+				break;
+			default:
+				size = a;
+			}
+			return (int) Math.max(1, Math.min(Integer.MAX_VALUE, size));
+		}
+	}
+}
@@ -0,0 +1,128 @@
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One range of bytes, from a client's Range header or an origin's
+ * Content-Range. first and last are inclusive like in the headers.
+ * Only a single range is served from the cache, a list of ranges is
+ * answered with the whole body, which HTTP allows.
+ */
+final class ByteRange {
+	// -1 for a suffix range (bytes=-500), then last is the suffix length
+	final long first;
+	// -1 for an open range (bytes=500-)
+	final long last;
+
+	ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	/**
+	 * The single range of the request's Range header, null if there is none
+	 * or it is a list or something else than bytes.
+	 */
+	public static ByteRange parse(List<String> requestComponents) {
+		for (int i = 1; i < requestComponents.size(); i++) {
+			String line = requestComponents.get(i).trim();
+			if (!line.toLowerCase(Locale.ROOT).startsWith("range:")) {
+				continue;
+			}
+			String spec = line.substring(6).trim();
+			if (!spec.toLowerCase(Locale.ROOT).startsWith("bytes=") || spec.indexOf(',') >= 0) {
+				return null;
+			}
+			spec = spec.substring(6).trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			try {
+				String from = spec.substring(0, dash).trim();
+				String to = spec.substring(dash + 1).trim();
+				if (from.isEmpty()) {
+					return to.isEmpty() ? null : new ByteRange(-1, Long.parseLong(to));
+				}
+				ByteRange range = new ByteRange(Long.parseLong(from), to.isEmpty() ? -1 : Long.parseLong(to));
+				return range.last >= 0 && range.last < range.first ? null : range;
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The value of a request header, null if it is not there.
+	 */
+	public static String header(List<String> requestComponents, String name) {
+		for (int i = 1; i < requestComponents.size(); i++) {
+			String line = requestComponents.get(i);
+			int colon = line.indexOf(':');
+			if (colon == name.length() && line.regionMatches(true, 0, name, 0, colon)) {
+				return line.substring(colon + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The range with both ends inside a body of the given length,
+	 * null if none of it is (416 Range Not Satisfiable).
+	 */
+	public ByteRange resolve(long length) {
+		if (first < 0) {
+			if (last == 0 || length == 0) {
+				return null;
+			}
+			return new ByteRange(Math.max(0, length - last), length - 1);
+		}
+		if (first >= length) {
+			return null;
+		}
+		return new ByteRange(first, last < 0 ? length - 1 : Math.min(last, length - 1));
+	}
+
+	public long length() {
+		return last - first + 1;
+	}
+
+	/**
+	 * The Content-Range value for this resolved range.
+	 */
+	public String contentRange(long total) {
+		return "bytes " + first + "-" + last + "/" + total;
+	}
+
+	/**
+	 * Reads an origin's Content-Range: bytes first-last/total.
+	 * Returns {first, last, total}, or null if the total is not given
+	 * (bytes 0-99/*) since then we cannot place the bytes.
+	 */
+	public static long[] parseContentRange(String value) {
+		if (value == null) {
+			return null;
+		}
+		String spec = value.trim();
+		if (!spec.toLowerCase(Locale.ROOT).startsWith("bytes ")) {
+			return null;
+		}
+		spec = spec.substring(6).trim();
+		int dash = spec.indexOf('-');
+		int slash = spec.indexOf('/');
+		if (dash < 0 || slash < dash) {
+			return null;
+		}
+		try {
+			long first = Long.parseLong(spec.substring(0, dash).trim());
+			long last = Long.parseLong(spec.substring(dash + 1, slash).trim());
+			long total = Long.parseLong(spec.substring(slash + 1).trim());
+			if (first > last || last >= total) {
+				return null;
+			}
+			return new long[] { first, last, total };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks how Range and Content-Range headers are read: single, suffix and
+ * open ranges, lists that fall back to the whole body, and ranges that
+ * cannot be satisfied.
+ *
+ * Run: java ByteRangeTest, exits with 1 if a check failed.
+ */
+public class ByteRangeTest {
+	public static void main(String[] args) {
+		parse();
+		resolve();
+		contentRange();
+		Checks.exit();
+	}
+
+	private static void parse() {
+		ByteRange range = parse("Range: bytes=100-199");
+		Checks.check(range != null && range.first == 100 && range.last == 199, "closed range");
+		range = parse("range:bytes=-500");
+		Checks.check(range != null && range.first == -1 && range.last == 500, "suffix range, any case");
+		range = parse("Range: bytes=500-");
+		Checks.check(range != null && range.first == 500 && range.last == -1, "open range");
+		Checks.check(parse("Range: bytes=0-99, 200-299") == null, "a list of ranges gets the whole body");
+		Checks.check(parse("Range: bytes=200-100") == null, "last before first is ignored");
+		Checks.check(parse("Range: items=0-1") == null && parse("Range: bytes=a-b") == null
+				&& parse("Range: bytes=-") == null && parse("Range: bytes=5") == null, "what is not a byte range is ignored");
+		Checks.check(ByteRange.parse(List.of("GET http://example.com/ HTTP/1.1", "Accept: */*")) == null,
+				"no Range header");
+	}
+
+	private static void resolve() {
+		Checks.check(same(new ByteRange(100, 199).resolve(1000), 100, 199), "closed range inside the body");
+		Checks.check(same(new ByteRange(900, 5000).resolve(1000), 900, 999), "last is cut to the body");
+		Checks.check(same(new ByteRange(500, -1).resolve(1000), 500, 999), "open range runs to the end");
+		Checks.check(same(new ByteRange(-1, 100).resolve(1000), 900, 999), "suffix range is the last bytes");
+		Checks.check(same(new ByteRange(-1, 5000).resolve(1000), 0, 999), "longer suffix is the whole body");
+		Checks.check(new ByteRange(1000, 1100).resolve(1000) == null, "range past the end is unsatisfiable");
+		Checks.check(new ByteRange(-1, 0).resolve(1000) == null, "empty suffix is unsatisfiable");
+		Checks.check(new ByteRange(-1, 10).resolve(0) == null, "nothing of an empty body");
+		ByteRange resolved = new ByteRange(0, 0).resolve(10);
+		Checks.check(resolved.length() == 1 && resolved.contentRange(10).equals("bytes 0-0/10"),
+				"length and Content-Range of one byte");
+	}
+
+	private static void contentRange() {
+		Checks.check(Arrays.equals(ByteRange.parseContentRange("bytes 0-99/1000"), new long[] { 0, 99, 1000 }),
+				"Content-Range with a total");
+		Checks.check(Arrays.equals(ByteRange.parseContentRange(" Bytes 999-999/1000 "), new long[] { 999, 999, 1000 }),
+				"last byte, any case");
+		Checks.check(ByteRange.parseContentRange("bytes 0-99/*") == null, "without a total it cannot be placed");
+		Checks.check(ByteRange.parseContentRange("bytes */1000") == null, "the range of a 416");
+		Checks.check(ByteRange.parseContentRange("bytes 100-99/1000") == null
+				&& ByteRange.parseContentRange("bytes 0-1000/1000") == null, "range outside its total");
+		Checks.check(ByteRange.parseContentRange(null) == null && ByteRange.parseContentRange("items 0-1/2") == null
+				&& ByteRange.parseContentRange("bytes x-1/2") == null, "no or broken Content-Range");
+	}
+
+	private static ByteRange parse(String header) {
+		return ByteRange.parse(List.of("GET http://example.com/ HTTP/1.1", "Host: example.com", header));
+	}
+
+	private static boolean same(ByteRange range, long first, long last) {
+		return range != null && range.first == first && range.last == last;
+	}
+}
@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Everything the proxy keeps for one cached response.
+ * Body, head, timing, validators and hit count live in the same object so
+ * they are stored and evicted together.
+ */
+class CacheEntry {
+	// what was asked for, to revalidate the entry without a client, null if not known
+	private final String url;
+	private final CachedBody body;
+	// the original time it took us to get the resource
+	// from the actual webserver over internet
+	private final long fetchTime;
+	// wall clock millis when the response came from the origin, for the Age header
+	private final long storedAt;
+	// wall clock millis until the entry can be served without asking the origin
+	private final long expiresAt;
+	private final String etag;
+	private final String lastModified;
+	// grace windows after expiresAt, see Freshness
+	private final long staleWhileRevalidate;
+	private final long staleIfError;
+	// status line and origin headers, serialized once, see HttpHead.origin
+	private final byte[] head;
+	// gzip if the body is kept compressed, null for the plain body
+	private final String contentEncoding;
+	// striped, a hot entry is hit by many threads at once
+	private final LongAdder hits = new LongAdder();
+
+	public CacheEntry(String url, CachedBody body, byte[] head, String contentEncoding, long fetchTime, long storedAt,
+			Freshness freshness) {
+		this.url = url;
+		this.body = body;
+		this.head = head;
+		this.contentEncoding = contentEncoding;
+		this.fetchTime = fetchTime;
+		this.storedAt = storedAt;
+		this.expiresAt = freshness.expiresAt();
+		this.etag = freshness.etag();
+		this.lastModified = freshness.lastModified();
+		this.staleWhileRevalidate = freshness.staleWhileRevalidate();
+		this.staleIfError = freshness.staleIfError();
+	}
+
+	public String url() {
+		return url;
+	}
+
+	public CachedBody body() {
+		return body;
+	}
+
+	public long fetchTime() {
+		return fetchTime;
+	}
+
+	public long expiresAt() {
+		return expiresAt;
+	}
+
+	public String etag() {
+		return etag;
+	}
+
+	public String lastModified() {
+		return lastModified;
+	}
+
+	public byte[] head() {
+		return head;
+	}
+
+	public long storedAt() {
+		return storedAt;
+	}
+
+	/**
+	 * Seconds since the origin sent this, for the Age header.
+	 */
+	public long age(long now) {
+		return Math.max(0, (now - storedAt) / 1000);
+	}
+
+	public String contentEncoding() {
+		return contentEncoding;
+	}
+
+	public void hit() {
+		hits.increment();
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public boolean isFresh(long now) {
+		return now < expiresAt;
+	}
+
+	public long staleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+
+	public long staleIfError() {
+		return staleIfError;
+	}
+
+	/**
+	 * True if the expired entry may still be served while it is refreshed
+	 * in the background. defaultWindow is used when the origin did not say.
+	 */
+	public boolean canServeWhileRevalidating(long now, long defaultWindow) {
+		return now < expiresAt + (staleWhileRevalidate >= 0 ? staleWhileRevalidate : defaultWindow);
+	}
+
+	/**
+	 * True if the expired entry may be served because the origin failed.
+	 */
+	public boolean canServeOnError(long now, long defaultWindow) {
+		return now < expiresAt + (staleIfError >= 0 ? staleIfError : defaultWindow);
+	}
+
+	/**
+	 * True if the origin gave us something to send a conditional request with.
+	 */
+	public boolean hasValidators() {
+		return etag != null || lastModified != null;
+	}
+
+	/**
+	 * The same body after a 304 Not Modified, with head being the stored head
+	 * merged with the 304's headers and freshness parsed from that merged head.
+	 */
+	public CacheEntry revalidated(byte[] head, Freshness freshness) {
+		CacheEntry refreshed = new CacheEntry(url, body, head, contentEncoding, fetchTime, System.currentTimeMillis(),
+				freshness);
+		refreshed.hits.add(hits());
+		return refreshed;
+	}
+
+	/**
+	 * Number of bytes this entry is charged against the cache budget.
+	 */
+	public long weight() {
+		return body.length() + head.length;
+	}
+}
@@ -0,0 +1,178 @@
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 128 bit fingerprint of a request, used as the cache key.
+ * It covers the method, the normalized absolute url and the values of the
+ * configured vary headers. Cookie and Authorization are in by default,
+ * so we never forward someone else's fb profile to you.
+ */
+final class CacheKey {
+	private final long high;
+	private final long low;
+
+	CacheKey(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	public long high() {
+		return high;
+	}
+
+	public long low() {
+		return low;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CacheKey)) {
+			return false;
+		}
+		CacheKey other = (CacheKey) obj;
+		return high == other.high && low == other.low;
+	}
+
+	@Override
+	public int hashCode() {
+		// the bits are already a hash, just fold them
+		return (int) (low ^ (low >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", high, low);
+	}
+
+	/**
+	 * Builds keys from the request line and header lines of a client request.
+	 */
+	static class Builder {
+		private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		// lower case header names, the order is fixed so the key is stable
+		private final List<String> varyHeaders;
+
+		public Builder(List<String> varyHeaders) {
+			this.varyHeaders = new ArrayList<>();
+			for (String header : varyHeaders) {
+				String name = header.trim().toLowerCase(Locale.ROOT);
+				if (!name.isEmpty() && !this.varyHeaders.contains(name)) {
+					this.varyHeaders.add(name);
+				}
+			}
+		}
+
+		/**
+		 * Reads the comma separated --vary-headers option.
+		 */
+		public static Builder fromConfig(ProxyConfig config) {
+			return new Builder(Arrays.asList(config.get("vary-headers", "Cookie,Authorization").split(",")));
+		}
+
+		/**
+		 * requestComponents are the lines of the request header,
+		 * the request line first.
+		 */
+		public CacheKey build(String method, String url, List<String> requestComponents) {
+			StringBuilder canonical = new StringBuilder(256);
+			canonical.append(method.toUpperCase(Locale.ROOT)).append('\n')
+			.append(normalize(url)).append('\n');
+			for (String name : varyHeaders) {
+				canonical.append(name).append(':');
+				// repeated headers are all taken, in the order they came
+				for (int i = 1; i < requestComponents.size(); i++) {
+					String line = requestComponents.get(i);
+					int colon = line.indexOf(':');
+					if (colon == name.length() && line.regionMatches(true, 0, name, 0, colon)) {
+						canonical.append(line.substring(colon + 1).trim()).append(',');
+					}
+				}
+				canonical.append('\n');
+			}
+			MessageDigest md5 = MD5.get();
+			byte[] digest = md5.digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+			return new CacheKey(toLong(digest, 0), toLong(digest, 8));
+		}
+
+		/**
+		 * True if the keys tell apart all requests the response's Vary
+		 * header names, so one stored copy is right for everyone with the
+		 * same key. Accept-Encoding is fine, we keep one encoding and
+		 * inflate it for the clients that need it. Vary: * never is.
+		 */
+		public boolean covers(Map<String, List<String>> responseHeaders) {
+			for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+				if (header.getKey() == null || !header.getKey().equalsIgnoreCase("Vary")) {
+					continue;
+				}
+				for (String value : header.getValue()) {
+					for (String name : value.split(",")) {
+						name = name.trim().toLowerCase(Locale.ROOT);
+						if (!name.isEmpty() && !name.equals("accept-encoding") && !varyHeaders.contains(name)) {
+							return false;
+						}
+					}
+				}
+			}
+			return true;
+		}
+
+		// scheme and host are case insensitive, default ports
+		// and fragments dont change the resource
+		static String normalize(String url) {
+			try {
+				URI uri = new URI(url.trim());
+				if (uri.getScheme() == null || uri.getHost() == null) {
+					return url.trim();
+				}
+				String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+				int port = uri.getPort();
+				if ((port == 80 && scheme.equals("http")) || (port == 443 && scheme.equals("https"))) {
+					port = -1;
+				}
+				String path = uri.getRawPath();
+				if (path == null || path.isEmpty()) {
+					path = "/";
+				}
+				StringBuilder builder = new StringBuilder();
+				builder.append(scheme).append("://").append(uri.getHost().toLowerCase(Locale.ROOT));
+				if (port != -1) {
+					builder.append(':').append(port);
+				}
+				builder.append(path);
+				if (uri.getRawQuery() != null) {
+					builder.append('?').append(uri.getRawQuery());
+				}
+				return builder.toString();
+			} catch (URISyntaxException e) {
+				return url.trim();
+			}
+		}
+
+		private static long toLong(byte[] bytes, int offset) {
+			long value = 0;
+			for (int i = offset; i < offset + 8; i++) {
+				value = (value << 8) | (bytes[i] & 0xff);
+			}
+			return value;
+		}
+	}
+}
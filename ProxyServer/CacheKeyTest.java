@@ -0,0 +1,74 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that urls naming the same resource get the same cache key and
+ * that requests the configured vary headers tell apart get different ones.
+ *
+ * Run: java CacheKeyTest, exits with 1 if a check failed.
+ */
+public class CacheKeyTest {
+	private static final CacheKey.Builder KEYS = new CacheKey.Builder(Arrays.asList("Cookie", " authorization", ""));
+
+	public static void main(String[] args) {
+		normalize();
+		sameResource();
+		vary();
+		covers();
+		Checks.exit();
+	}
+
+	private static void normalize() {
+		Checks.check(CacheKey.Builder.normalize("HTTP://Example.COM:80/a/B?q=X#top").equals("http://example.com/a/B?q=X"),
+				"scheme and host lower cased, port 80 and fragment dropped, path and query kept");
+		Checks.check(CacheKey.Builder.normalize("https://example.com:443").equals("https://example.com/"),
+				"port 443 dropped for https, empty path is /");
+		Checks.check(CacheKey.Builder.normalize("http://example.com:443/").equals("http://example.com:443/"),
+				"port 443 kept for http");
+		Checks.check(CacheKey.Builder.normalize(" /relative ").equals("/relative"), "url without host only trimmed");
+	}
+
+	private static void sameResource() {
+		CacheKey key = key("GET", "http://example.com/a?q=1");
+		Checks.check(key.equals(key("get", "HTTP://EXAMPLE.com:80/a?q=1#part")), "equivalent urls get the same key");
+		Checks.check(key.hashCode() == key("GET", "http://Example.com/a?q=1").hashCode(), "equal keys hash the same");
+		Checks.check(!key.equals(key("GET", "http://example.com/A?q=1")), "path is case sensitive");
+		Checks.check(!key.equals(key("GET", "http://example.com/a?q=2")), "query is part of the key");
+		Checks.check(!key.equals(key("HEAD", "http://example.com/a?q=1")), "method is part of the key");
+		Checks.check(!key.equals(key("GET", "http://example.com:8080/a?q=1")), "other port, other key");
+	}
+
+	private static void vary() {
+		String url = "http://example.com/";
+		CacheKey none = key("GET", url);
+		CacheKey alice = key("GET", url, "Cookie: user=alice");
+		Checks.check(!none.equals(alice), "a cookie changes the key");
+		Checks.check(!alice.equals(key("GET", url, "Cookie: user=bob")), "different cookies, different keys");
+		Checks.check(alice.equals(key("GET", url, "cookie:user=alice ")), "header name case and spaces do not matter");
+		Checks.check(!alice.equals(key("GET", url, "Authorization: user=alice")),
+				"same value in another vary header, another key");
+		Checks.check(!key("GET", url, "Cookie: a", "Cookie: b").equals(key("GET", url, "Cookie: b", "Cookie: a")),
+				"repeated headers count in the order they came");
+		Checks.check(none.equals(key("GET", url, "Accept-Language: de", "X-Cookie: no")),
+				"headers that are not configured do not change the key");
+	}
+
+	private static void covers() {
+		Checks.check(KEYS.covers(Collections.singletonMap("Vary", Arrays.asList("Cookie, Accept-Encoding"))),
+				"vary on a configured header and accept-encoding is covered");
+		Checks.check(!KEYS.covers(Collections.singletonMap("vary", Arrays.asList("Accept-Language"))),
+				"vary on another header is not covered");
+		Checks.check(!KEYS.covers(Collections.singletonMap("Vary", Arrays.asList("*"))), "vary * is never covered");
+		Map<String, List<String>> status = Collections.singletonMap(null, Arrays.asList("HTTP/1.1 200 OK"));
+		Checks.check(KEYS.covers(status), "no vary header is covered");
+	}
+
+	private static CacheKey key(String method, String url, String... headers) {
+		String[] lines = new String[headers.length + 1];
+		lines[0] = method + " " + url + " HTTP/1.1";
+		System.arraycopy(headers, 0, lines, 1, headers.length);
+		return KEYS.build(method, url, Arrays.asList(lines));
+	}
+}
@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable response body kept in the cache as a list of plain byte arrays.
+ * Bodies are written straight from the chunks to the client, so a hit does
+ * not need to copy or unbox anything.
+ */
+class CachedBody {
+	// 16KB chunks, big enough to keep the chunk list short
+	// and small enough that the last chunk does not waste much
+	static final int CHUNK_SIZE = 16 * 1024;
+	static final int FIRST_CHUNK_SIZE = 1024;
+
+	private final byte[][] chunks;
+	private final int length;
+
+	private CachedBody(byte[][] chunks, int length) {
+		this.chunks = chunks;
+		this.length = length;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Writes the whole body to the given stream, chunk by chunk.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		for (byte[] chunk : chunks) {
+			out.write(chunk, 0, chunk.length);
+		}
+	}
+
+	/**
+	 * Reads the body back chunk by chunk, without copying it first.
+	 */
+	public InputStream inputStream() {
+		return new InputStream() {
+			private int chunk;
+			private int position;
+
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				while (chunk < chunks.length && position == chunks[chunk].length) {
+					chunk++;
+					position = 0;
+				}
+				if (chunk == chunks.length) {
+					return -1;
+				}
+				int n = Math.min(len, chunks[chunk].length - position);
+				System.arraycopy(chunks[chunk], position, b, off, n);
+				position += n;
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * The chunks wrapped as read-only buffers, for channel writes.
+	 * Nothing is copied, every call gets its own buffer positions.
+	 */
+	public ByteBuffer[] buffers() {
+		ByteBuffer[] buffers = new ByteBuffer[chunks.length];
+		for (int i = 0; i < chunks.length; i++) {
+			buffers[i] = ByteBuffer.wrap(chunks[i]).asReadOnlyBuffer();
+		}
+		return buffers;
+	}
+
+	/**
+	 * The bytes from first to last (inclusive) as read-only buffers over the
+	 * chunks, for a 206 Partial Content. Nothing is copied either.
+	 */
+	public ByteBuffer[] buffers(long first, long last) {
+		List<ByteBuffer> buffers = new ArrayList<>();
+		long chunkStart = 0;
+		for (byte[] chunk : chunks) {
+			long chunkEnd = chunkStart + chunk.length;
+			if (chunkEnd > first && chunkStart <= last) {
+				int from = (int) Math.max(0, first - chunkStart);
+				int to = (int) Math.min(chunk.length, last + 1 - chunkStart);
+				buffers.add(ByteBuffer.wrap(chunk, from, to - from).slice().asReadOnlyBuffer());
+			}
+			if (chunkEnd > last) {
+				break;
+			}
+			chunkStart = chunkEnd;
+		}
+		return buffers.toArray(new ByteBuffer[0]);
+	}
+
+	/**
+	 * Builds a body from bytes we already have, like a copy read from disk.
+	 */
+	static CachedBody of(byte[] data) {
+		return new CachedBody(new byte[][] { data }, data.length);
+	}
+
+	/**
+	 * Collects the bytes of a response while it is read from the server.
+	 */
+	static class Builder {
+		private final List<byte[]> chunks = new ArrayList<>();
+		// bodies over this are not kept, see overflowed()
+		private final long limit;
+		// starts small and doubles up to CHUNK_SIZE, most pages are tiny
+		private byte[] current = new byte[FIRST_CHUNK_SIZE];
+		private int position = 0;
+		private long length = 0;
+		private boolean overflowed;
+
+		public Builder() {
+			this(Integer.MAX_VALUE);
+		}
+
+		public Builder(long limit) {
+			this.limit = Math.min(limit, Integer.MAX_VALUE);
+		}
+
+		public void write(byte[] data, int offset, int count) {
+			if (overflowed || length + count > limit) {
+				// too big to cache, let go of what we have and only count from now on
+				if (!overflowed) {
+					overflowed = true;
+					chunks.clear();
+					current = null;
+				}
+				length += count;
+				return;
+			}
+			while (count > 0) {
+				if (position == current.length) {
+					chunks.add(current);
+					current = new byte[Math.min(CHUNK_SIZE, current.length * 2)];
+					position = 0;
+				}
+				int n = Math.min(count, current.length - position);
+				System.arraycopy(data, offset, current, position, n);
+				position += n;
+				offset += n;
+				count -= n;
+				length += n;
+			}
+		}
+
+		public long length() {
+			return length;
+		}
+
+		/**
+		 * True if the body went over the limit and was not kept.
+		 */
+		public boolean overflowed() {
+			return overflowed;
+		}
+
+		public CachedBody build() {
+			if (overflowed) {
+				throw new IllegalStateException("Body of " + length + " bytes is over the limit of " + limit);
+			}
+			List<byte[]> all = new ArrayList<>(chunks);
+			// trim the last chunk so we dont keep the unused tail around
+			if (position > 0) {
+				all.add(position == current.length ? current : Arrays.copyOf(current, position));
+			}
+			return new CachedBody(all.toArray(new byte[0][]), (int) length);
+		}
+	}
+}
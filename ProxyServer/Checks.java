@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * What the *Test classes share: they are run with java and count their
+ * checks here instead of pulling in a test framework.
+ */
+final class Checks {
+	private static int checks;
+	private static int failed;
+
+	private Checks() {
+	}
+
+	static void check(boolean ok, String what) {
+		checks++;
+		if (!ok) {
+			failed++;
+			System.out.println("FAILED: " + what);
+		}
+	}
+
+	/**
+	 * Prints the count and exits, with 1 if a check failed. Exiting also
+	 * ends the background threads the tested classes started.
+	 */
+	static void exit() {
+		System.out.println(checks + " checks, " + failed + " failed");
+		System.exit(failed > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Deletes a temporary directory and everything in it.
+	 */
+	static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
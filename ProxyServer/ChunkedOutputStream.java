@@ -0,0 +1,46 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a body in HTTP chunked encoding, for responses whose length we
+ * only know once the origin is done sending.
+ */
+class ChunkedOutputStream extends FilterOutputStream {
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	public ChunkedOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			// an empty chunk would end the body
+			return;
+		}
+		out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Ends the body, the underlying stream stays open for the next response.
+	 */
+	public void finish() throws IOException {
+		out.write(LAST_CHUNK);
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		flush();
+	}
+}
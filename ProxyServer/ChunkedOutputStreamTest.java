@@ -0,0 +1,45 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks the bytes of a chunked body: hex sizes, CRLF after every chunk,
+ * no empty chunk in the middle and exactly one terminator at the end.
+ *
+ * Run: java ChunkedOutputStreamTest, exits with 1 if a check failed.
+ */
+public class ChunkedOutputStreamTest {
+	public static void main(String[] args) throws IOException {
+		chunks();
+		empty();
+		Checks.exit();
+	}
+
+	private static void chunks() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+		chunked.write(bytes("hello"));
+		// an empty write would be read as the end of the body
+		chunked.write(new byte[0]);
+		chunked.write(bytes("0123456789abcdefXY"), 0, 18);
+		chunked.write('!');
+		chunked.finish();
+		Checks.check(text(out).equals("5\r\nhello\r\n12\r\n0123456789abcdefXY\r\n1\r\n!\r\n0\r\n\r\n"),
+				"chunks and terminator: " + text(out));
+	}
+
+	private static void empty() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+		chunked.close();
+		Checks.check(text(out).equals("0\r\n\r\n"), "an empty body is only the terminator");
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static String text(ByteArrayOutputStream out) {
+		return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,508 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Second cache tier on local disk, so a restart does not start cold.
+ * Responses are appended to segment files of --disk-segment-size bytes.
+ * Only the index (where each body is) lives in memory, it is rebuilt on
+ * startup by scanning the record headers of the memory mapped segments.
+ * When the directory grows over --disk-cache-size the oldest segment is
+ * deleted as a whole. Hits are sent with FileChannel.transferTo, the body
+ * goes from the page cache to the socket without passing through Java.
+ * A removed key gets a tombstone record, so the rebuild does not bring it
+ * back. Reads do not wait for the writer, a segment they are reading from
+ * is only closed and deleted once they are done with it.
+ */
+class DiskCache {
+	// changes with the record layout, records of an older layout end the scan and are dropped
+	private static final int MAGIC = 0x50524F5D;
+	// a record that only says the key was removed
+	private static final int TOMBSTONE = 0x50524F2D;
+	// magic, record length, key, fetch time, stored at, expiry, stale windows, head length, body length
+	private static final int FIXED_HEADER = 4 + 4 + 16 + 8 + 8 + 8 + 8 + 8 + 4 + 4;
+	// tombstone, record length, key
+	private static final int TOMBSTONE_LENGTH = 4 + 4 + 16;
+
+	private final Path directory;
+	private final long maxBytes;
+	private final long segmentSize;
+	private final Map<CacheKey, Location> index = new ConcurrentHashMap<>();
+	// segment id -> open segment, oldest first
+	// readers look up here without a lock, only the writer adds and removes
+	private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+	// keys with a store still in the writer's queue, a remove of them needs a tombstone too
+	private final Set<CacheKey> pending = ConcurrentHashMap.newKeySet();
+	private final ThreadPoolExecutor writer;
+	private final AtomicLong hits = new AtomicLong();
+	// only written by the writer
+	private volatile long usedBytes;
+	private int active;
+	private long activeSize;
+
+	public DiskCache(Path directory, long maxBytes, long segmentSize) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.segmentSize = segmentSize;
+		Files.createDirectories(directory);
+		rebuild();
+		// writes happen on one background thread, a full queue just skips the disk
+		this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1000), r -> {
+			Thread thread = new Thread(r, "disk-cache-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// stores and tombstones still queued are written before the proxy stops
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+	}
+
+	/**
+	 * Returns null unless --disk-cache-dir is given.
+	 */
+	public static DiskCache fromConfig(ProxyConfig config) throws IOException {
+		String dir = config.get("disk-cache-dir", null);
+		if (dir == null) {
+			return null;
+		}
+		return new DiskCache(Paths.get(dir), config.getBytes("disk-cache-size", 1024L * 1024 * 1024),
+				config.getBytes("disk-segment-size", 64L * 1024 * 1024));
+	}
+
+	/**
+	 * Where a body is on disk plus what we need to answer with it.
+	 */
+	static class Location {
+		final int segment;
+		final long offset;
+		final int length;
+		final long fetchTime;
+		final long storedAt;
+		final long expiresAt;
+		final long staleWhileRevalidate;
+		final long staleIfError;
+		final String url;
+		final String etag;
+		final String lastModified;
+		final String contentEncoding;
+		// status line and origin headers, the same bytes the memory cache keeps
+		final byte[] head;
+
+		Location(int segment, long offset, int length, long fetchTime, long storedAt, long expiresAt,
+				long staleWhileRevalidate, long staleIfError, String url, String etag, String lastModified,
+				String contentEncoding, byte[] head) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.fetchTime = fetchTime;
+			this.storedAt = storedAt;
+			this.expiresAt = expiresAt;
+			this.staleWhileRevalidate = staleWhileRevalidate;
+			this.staleIfError = staleIfError;
+			this.url = url;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.contentEncoding = contentEncoding;
+			this.head = head;
+		}
+
+		public boolean isFresh(long now) {
+			return now < expiresAt;
+		}
+
+		public long age(long now) {
+			return Math.max(0, (now - storedAt) / 1000);
+		}
+	}
+
+	/**
+	 * A segment file and how many reads are using it right now.
+	 * Eviction takes it out of the map at once, but the file is closed
+	 * and deleted by whoever leaves it last.
+	 */
+	private class Segment {
+		final int id;
+		final FileChannel channel;
+		// reads in progress, -1 once it is closed
+		private final AtomicInteger pins = new AtomicInteger();
+		private volatile boolean evicted;
+
+		Segment(int id, FileChannel channel) {
+			this.id = id;
+			this.channel = channel;
+		}
+
+		void pin() throws IOException {
+			while (true) {
+				int current = pins.get();
+				if (current < 0) {
+					throw new IOException("Segment " + id + " was evicted");
+				}
+				if (pins.compareAndSet(current, current + 1)) {
+					return;
+				}
+			}
+		}
+
+		void unpin() throws IOException {
+			if (pins.decrementAndGet() == 0 && evicted) {
+				close();
+			}
+		}
+
+		void evict() throws IOException {
+			evicted = true;
+			if (pins.get() == 0) {
+				close();
+			}
+		}
+
+		// only the first one that finds it unused gets to close it
+		private void close() throws IOException {
+			if (pins.compareAndSet(0, -1)) {
+				channel.close();
+				Files.deleteIfExists(segmentPath(id));
+			}
+		}
+	}
+
+	public Location get(CacheKey key) {
+		Location location = index.get(key);
+		if (location != null) {
+			hits.incrementAndGet();
+		}
+		return location;
+	}
+
+	/**
+	 * Drops the key and writes a tombstone for it, so it stays gone after a
+	 * restart. A key the disk never had costs nothing.
+	 */
+	public void remove(CacheKey key) {
+		if (index.remove(key) == null && !pending.contains(key)) {
+			return;
+		}
+		Runnable forget = () -> {
+			try {
+				// a store queued before us has landed in the index by now
+				index.remove(key);
+				appendTombstone(key);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		};
+		try {
+			writer.execute(forget);
+		} catch (RejectedExecutionException e) {
+			// unlike a store this one must not be skipped, unless we are closed
+			if (!writer.isShutdown()) {
+				forget.run();
+			}
+		}
+	}
+
+	/**
+	 * Queues the entry to be appended, the caller does not wait for the disk.
+	 */
+	public void store(CacheKey key, CacheEntry entry) {
+		pending.add(key);
+		try {
+			writer.execute(() -> {
+				try {
+					append(key, entry);
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					pending.remove(key);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// disk is behind, this one only lives in memory
+			pending.remove(key);
+		}
+	}
+
+	/**
+	 * Sends the body straight from the file to the channel.
+	 */
+	public void transferTo(Location location, WritableByteChannel target) throws IOException {
+		transferTo(location, 0, location.length, target);
+	}
+
+	/**
+	 * Sends count bytes of the body from offset on, for a 206 Partial Content.
+	 */
+	public void transferTo(Location location, long offset, long count, WritableByteChannel target) throws IOException {
+		Segment segment = pin(location.segment);
+		try {
+			long position = location.offset + offset;
+			long end = position + count;
+			while (position < end) {
+				long sent = segment.channel.transferTo(position, end - position, target);
+				if (sent <= 0 && position < end) {
+					// only happens if the segment was cut short under us
+					throw new IOException("Segment " + location.segment + " ended early");
+				}
+				position += sent;
+			}
+		} finally {
+			segment.unpin();
+		}
+	}
+
+	/**
+	 * Reads the whole entry back into memory, for revalidating a stale copy.
+	 */
+	public CacheEntry load(Location location) throws IOException {
+		byte[] body = new byte[location.length];
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		Segment segment = pin(location.segment);
+		try {
+			long position = location.offset;
+			while (buffer.hasRemaining()) {
+				int read = segment.channel.read(buffer, position);
+				if (read < 0) {
+					throw new IOException("Segment " + location.segment + " ended early");
+				}
+				position += read;
+			}
+		} finally {
+			segment.unpin();
+		}
+		return new CacheEntry(location.url, CachedBody.of(body), location.head, location.contentEncoding, location.fetchTime,
+				location.storedAt, new Freshness(true, location.expiresAt, location.etag, location.lastModified,
+						location.staleWhileRevalidate, location.staleIfError));
+	}
+
+	/**
+	 * Writes what is still queued and closes the segments.
+	 */
+	public void close() {
+		if (writer.isShutdown()) {
+			return;
+		}
+		writer.shutdown();
+		try {
+			writer.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (Segment segment : segments.values()) {
+				try {
+					segment.channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long usedBytes() {
+		return usedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "Disk Cache Entries: " + size() + ", Bytes: " + usedBytes() + "/" + maxBytes + ", Hits: " + hits();
+	}
+
+	// the caller has to unpin it when done
+	private Segment pin(int id) throws IOException {
+		Segment segment = segments.get(id);
+		if (segment == null) {
+			throw new IOException("Segment " + id + " was evicted");
+		}
+		segment.pin();
+		return segment;
+	}
+
+	private synchronized void append(CacheKey key, CacheEntry entry) throws IOException {
+		if (entry.weight() > maxBytes) {
+			return;
+		}
+		byte[][] strings = { Records.utf(entry.url()), Records.utf(entry.etag()), Records.utf(entry.lastModified()),
+				Records.utf(entry.contentEncoding()) };
+		byte[] head = entry.head();
+		int headerLength = FIXED_HEADER + head.length;
+		for (byte[] s : strings) {
+			headerLength += Records.length(s);
+		}
+		int bodyLength = entry.body().length();
+		ByteBuffer header = ByteBuffer.allocate(headerLength);
+		header.putInt(MAGIC).putInt(headerLength + bodyLength)
+		.putLong(key.high()).putLong(key.low())
+		.putLong(entry.fetchTime()).putLong(entry.storedAt()).putLong(entry.expiresAt())
+		.putLong(entry.staleWhileRevalidate()).putLong(entry.staleIfError());
+		for (byte[] s : strings) {
+			Records.putString(header, s);
+		}
+		header.putInt(head.length).put(head);
+		header.putInt(bodyLength);
+		header.flip();
+		ByteBuffer[] body = entry.body().buffers();
+		ByteBuffer[] record = new ByteBuffer[body.length + 1];
+		record[0] = header;
+		System.arraycopy(body, 0, record, 1, body.length);
+		long start = write(record, headerLength + (long) bodyLength);
+		index.put(key, new Location(active, start + headerLength, bodyLength, entry.fetchTime(), entry.storedAt(),
+				entry.expiresAt(), entry.staleWhileRevalidate(), entry.staleIfError(), entry.url(), entry.etag(),
+				entry.lastModified(), entry.contentEncoding(), head));
+		evict();
+	}
+
+	private synchronized void appendTombstone(CacheKey key) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(TOMBSTONE_LENGTH);
+		record.putInt(TOMBSTONE).putInt(TOMBSTONE_LENGTH).putLong(key.high()).putLong(key.low());
+		record.flip();
+		write(new ByteBuffer[] { record }, TOMBSTONE_LENGTH);
+		evict();
+	}
+
+	// appends the record to the active segment, returns where it starts
+	// positional reads of the same channel do not wait for this
+	private long write(ByteBuffer[] record, long length) throws IOException {
+		if (segments.isEmpty() || activeSize >= segmentSize) {
+			roll();
+		}
+		FileChannel channel = segments.get(active).channel;
+		long start = activeSize;
+		long remaining = length;
+		channel.position(start);
+		while (remaining > 0) {
+			remaining -= channel.write(record);
+		}
+		activeSize += length;
+		usedBytes += length;
+		return start;
+	}
+
+	private void roll() throws IOException {
+		active = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		FileChannel channel = FileChannel.open(segmentPath(active), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segments.put(active, new Segment(active, channel));
+		activeSize = 0;
+	}
+
+	// drops whole segments, oldest first, never the one we write to
+	// tombstones are in later segments than what they remove, so they go last
+	private void evict() throws IOException {
+		while (usedBytes > maxBytes && segments.size() > 1) {
+			Segment oldest = segments.pollFirstEntry().getValue();
+			index.values().removeIf(location -> location.segment == oldest.id);
+			usedBytes -= oldest.channel.size();
+			// a read still sending from it closes it when done
+			oldest.evict();
+		}
+	}
+
+	// scans the segments in order, later records of a key win
+	private void rebuild() throws IOException {
+		File[] files = directory.toFile().listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".dat"));
+		ArrayList<Integer> ids = new ArrayList<>();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				try {
+					ids.add(Integer.parseInt(name.substring(8, name.length() - 4)));
+				} catch (NumberFormatException e) {
+					// not one of ours
+				}
+			}
+		}
+		ids.sort(null);
+		for (int id : ids) {
+			FileChannel channel = FileChannel.open(segmentPath(id), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long valid = scan(id, channel);
+			if (valid < channel.size()) {
+				// a record cut short by a crash, drop it so appends stay readable
+				channel.truncate(valid);
+			}
+			segments.put(id, new Segment(id, channel));
+			usedBytes += valid;
+			active = id;
+			activeSize = valid;
+		}
+		evict();
+	}
+
+	// returns the length of the segment that holds complete records
+	// a record that does not add up ends them, whatever follows is cut off
+	private long scan(int id, FileChannel channel) throws IOException {
+		long size = channel.size();
+		MappedReader reader = new MappedReader(channel);
+		long valid = 0;
+		while (size - valid >= TOMBSTONE_LENGTH) {
+			ByteBuffer start = reader.at(valid, 8);
+			int magic = start.getInt();
+			int recordLength = start.getInt();
+			if (magic == TOMBSTONE) {
+				if (recordLength != TOMBSTONE_LENGTH) {
+					break;
+				}
+				ByteBuffer record = reader.at(valid + 8, 16);
+				index.remove(new CacheKey(record.getLong(), record.getLong()));
+				valid += TOMBSTONE_LENGTH;
+				continue;
+			}
+			if (magic != MAGIC || recordLength < FIXED_HEADER || valid + recordLength > size) {
+				break;
+			}
+			ByteBuffer record = reader.at(valid, recordLength);
+			record.position(8);
+			try {
+				CacheKey key = new CacheKey(record.getLong(), record.getLong());
+				long fetchTime = record.getLong();
+				long storedAt = record.getLong();
+				long expiresAt = record.getLong();
+				long staleWhileRevalidate = record.getLong();
+				long staleIfError = record.getLong();
+				String url = Records.string(record);
+				String etag = Records.string(record);
+				String lastModified = Records.string(record);
+				String contentEncoding = Records.string(record);
+				byte[] head = Records.bytes(record);
+				int bodyLength = record.getInt();
+				if (bodyLength != record.remaining()) {
+					break;
+				}
+				// the body is not read, we only need the headers
+				index.put(key, new Location(id, valid + record.position(), bodyLength, fetchTime, storedAt, expiresAt,
+						staleWhileRevalidate, staleIfError, url, etag, lastModified, contentEncoding, head));
+			} catch (RuntimeException e) {
+				break;
+			}
+			valid += recordLength;
+		}
+		return valid;
+	}
+
+	private Path segmentPath(int id) {
+		return directory.resolve(String.format("segment-%08d.dat", id));
+	}
+}
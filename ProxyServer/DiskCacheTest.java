@@ -0,0 +1,203 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Checks that the disk cache comes back after a restart as it was left:
+ * removed keys stay removed, stored ones are there with their strings,
+ * a segment evicted while a hit is sent from it is only deleted after,
+ * and a broken record only costs the records from it on.
+ *
+ * Run: java DiskCacheTest, exits with 1 if a check failed.
+ */
+public class DiskCacheTest {
+	public static void main(String[] args) throws Exception {
+		rebuildAfterRemove();
+		longStrings();
+		evictWhileSending();
+		brokenRecord();
+		Checks.exit();
+	}
+
+	private static void rebuildAfterRemove() throws Exception {
+		Path dir = Files.createTempDirectory("disk-cache-test");
+		try {
+			CacheKey kept = new CacheKey(1, 1);
+			CacheKey removed = new CacheKey(2, 2);
+			CacheKey storedAgain = new CacheKey(3, 3);
+			CacheKey removedQueued = new CacheKey(4, 4);
+			DiskCache disk = new DiskCache(dir, 1 << 20, 64 << 10);
+			disk.store(kept, entry("http://example.com/kept", 100));
+			disk.store(removed, entry("http://example.com/removed", 100));
+			disk.store(storedAgain, entry("http://example.com/again", 100));
+			// removed while its store may still be in the writer's queue
+			disk.store(removedQueued, entry("http://example.com/queued", 100));
+			disk.remove(removedQueued);
+			disk.close();
+
+			disk = new DiskCache(dir, 1 << 20, 64 << 10);
+			disk.remove(removed);
+			disk.remove(storedAgain);
+			disk.store(storedAgain, entry("http://example.com/again", 200));
+			disk.close();
+
+			disk = new DiskCache(dir, 1 << 20, 64 << 10);
+			Checks.check(disk.get(kept) != null, "kept key is back after the rebuild");
+			Checks.check(disk.get(removed) == null, "removed key stays removed after the rebuild");
+			Checks.check(disk.get(removedQueued) == null, "key removed behind its queued store stays removed");
+			DiskCache.Location again = disk.get(storedAgain);
+			Checks.check(again != null && again.length == 200, "key stored after its tombstone is back with the new body");
+			Checks.check(disk.size() == 2, "two keys after the rebuild");
+			disk.close();
+		} finally {
+			Checks.delete(dir);
+		}
+	}
+
+	private static void longStrings() throws Exception {
+		Path dir = Files.createTempDirectory("disk-cache-test");
+		try {
+			char[] path = new char[40_000];
+			Arrays.fill(path, 'a');
+			String url = "http://example.com/" + new String(path);
+			CacheKey key = new CacheKey(5, 5);
+			DiskCache disk = new DiskCache(dir, 1 << 20, 64 << 10);
+			disk.store(key, entry(url, 10));
+			disk.close();
+			disk = new DiskCache(dir, 1 << 20, 64 << 10);
+			DiskCache.Location location = disk.get(key);
+			Checks.check(location != null && url.equals(location.url), "url over 32k survives the rebuild");
+			Checks.check(location != null && Arrays.equals(disk.load(location).body().inputStream().readAllBytes(), body(10)),
+					"body after a long url");
+			disk.close();
+		} finally {
+			Checks.delete(dir);
+		}
+	}
+
+	private static void evictWhileSending() throws Exception {
+		Path dir = Files.createTempDirectory("disk-cache-test");
+		try {
+			// 16k segments and room for about three of them
+			DiskCache disk = new DiskCache(dir, 48 << 10, 16 << 10);
+			CacheKey first = new CacheKey(10, 10);
+			disk.store(first, entry("http://example.com/first", 20 << 10));
+			DiskCache.Location location = await(disk, first);
+			ByteArrayOutputStream sent = new ByteArrayOutputStream();
+			WritableByteChannel out = Channels.newChannel(sent);
+			WritableByteChannel target = new WritableByteChannel() {
+				private boolean evicted;
+
+				@Override
+				public int write(ByteBuffer src) throws IOException {
+					if (!evicted) {
+						// more entries push the segment we are reading from out of the cache
+						evicted = true;
+						for (int i = 0; i < 8; i++) {
+							disk.store(new CacheKey(20, i), entry("http://example.com/" + i, 20 << 10));
+						}
+						long deadline = System.currentTimeMillis() + 5000;
+						while (disk.get(first) != null && System.currentTimeMillis() < deadline) {
+							sleep();
+						}
+						Checks.check(disk.get(first) == null, "first segment is evicted during the send");
+					}
+					return out.write(src);
+				}
+
+				@Override
+				public boolean isOpen() {
+					return true;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+			try {
+				disk.transferTo(location, target);
+				Checks.check(Arrays.equals(sent.toByteArray(), body(20 << 10)), "whole body sent from an evicted segment");
+			} catch (IOException e) {
+				Checks.check(false, "send from an evicted segment failed: " + e);
+			}
+			Checks.check(!Files.exists(dir.resolve("segment-00000001.dat")), "evicted segment deleted once the send is done");
+			disk.close();
+		} finally {
+			Checks.delete(dir);
+		}
+	}
+
+	private static void brokenRecord() throws Exception {
+		Path dir = Files.createTempDirectory("disk-cache-test");
+		try {
+			CacheKey before = new CacheKey(30, 30);
+			CacheKey broken = new CacheKey(31, 31);
+			DiskCache disk = new DiskCache(dir, 1 << 20, 64 << 10);
+			disk.store(before, entry("http://example.com/before", 100));
+			disk.store(broken, entry("http://example.com/broken", 100));
+			disk.store(new CacheKey(32, 32), entry("http://example.com/after", 100));
+			DiskCache.Location location = await(disk, broken);
+			long end = await(disk, before).offset + 100;
+			disk.close();
+
+			// the head length of the second record says more than the record holds
+			Path segment = dir.resolve("segment-00000001.dat");
+			try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+				channel.write(ByteBuffer.allocate(4).putInt(1 << 30).flip(), location.offset - 4 - location.head.length - 4);
+			}
+			Files.createFile(dir.resolve("segment-notours.dat"));
+			try {
+				disk = new DiskCache(dir, 1 << 20, 64 << 10);
+			} catch (RuntimeException e) {
+				Checks.check(false, "a broken record must not fail the rebuild: " + e);
+				return;
+			}
+			Checks.check(disk.get(before) != null, "record before the broken one is back");
+			Checks.check(disk.size() == 1, "records from the broken one on are dropped");
+			Checks.check(Files.size(segment) == end, "segment is cut off where the broken record starts");
+			disk.close();
+		} finally {
+			Checks.delete(dir);
+		}
+	}
+
+	private static CacheEntry entry(String url, int length) {
+		byte[] head = "HTTP/1.1 200 OK\r\nETag: \"v1\"\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		return new CacheEntry(url, CachedBody.of(body(length)), head, null, 1000, System.currentTimeMillis(),
+				new Freshness(true, System.currentTimeMillis() + 60_000, "\"v1\"", null));
+	}
+
+	private static byte[] body(int length) {
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; i++) {
+			body[i] = (byte) i;
+		}
+		return body;
+	}
+
+	// stores are written in the background
+	private static DiskCache.Location await(DiskCache disk, CacheKey key) {
+		long deadline = System.currentTimeMillis() + 5000;
+		DiskCache.Location location;
+		while ((location = disk.get(key)) == null && System.currentTimeMillis() < deadline) {
+			sleep();
+		}
+		return location;
+	}
+
+	private static void sleep() {
+		try {
+			Thread.sleep(10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Decides which key leaves the cache when it is over its byte budget.
+ * Implementations are not thread safe, the cache calls them under its lock.
+ * Lookups reach onAccess late and in batches, and some are dropped when busy.
+ */
+interface EvictionPolicy<K> {
+	/**
+	 * A lookup for the key, hit tells if the key was in the cache.
+	 */
+	void onAccess(K key, boolean hit);
+
+	/**
+	 * The key was stored in the cache.
+	 */
+	void onAdd(K key, long weight);
+
+	/**
+	 * The key was removed by the cache itself (replaced or cleared).
+	 */
+	void onRemove(K key);
+
+	/**
+	 * Picks a key to drop and forgets it. This can be the key that was
+	 * just added when the policy decides it is not worth keeping.
+	 * Returns null if the policy tracks nothing.
+	 */
+	K evict();
+
+	static <K> EvictionPolicy<K> create(String name, long maxBytes) {
+		switch (name.toLowerCase()) {
+		case "lru":
+			return new LruPolicy<>();
+		case "tinylfu":
+		case "w-tinylfu":
+			return new TinyLfuPolicy<>(maxBytes);
+		default:
+			throw new IllegalArgumentException("Unknown eviction policy: " + name);
+		}
+	}
+}
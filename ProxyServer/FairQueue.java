@@ -0,0 +1,248 @@
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded work queue that takes tasks round robin by client, so one busy
+ * client cannot fill the queue and starve the others.
+ * When the queue is full a task from a client with fewer waiting tasks
+ * pushes out the newest task of the client with the most, which is
+ * rejected. A task of the heaviest client is rejected itself.
+ * Tasks that are not a Workers.Task all count as one client.
+ */
+class FairQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+	private static final Object OTHER = new Object();
+
+	private final int capacity;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Map<Object, ArrayDeque<Runnable>> byClient = new HashMap<>();
+	// clients with waiting tasks, the next one to be served first
+	private final ArrayDeque<Object> turns = new ArrayDeque<>();
+	private int count;
+
+	public FairQueue(int capacity) {
+		this.capacity = capacity;
+	}
+
+	private static Object client(Runnable task) {
+		Object client = task instanceof Workers.Task ? ((Workers.Task) task).client() : null;
+		return client != null ? client : OTHER;
+	}
+
+	@Override
+	public boolean offer(Runnable task) {
+		Object client = client(task);
+		Runnable pushedOut = null;
+		lock.lock();
+		try {
+			if (count >= capacity) {
+				ArrayDeque<Runnable> own = byClient.get(client);
+				int ownSize = own == null ? 0 : own.size();
+				Object heaviest = null;
+				int heaviestSize = 0;
+				for (Map.Entry<Object, ArrayDeque<Runnable>> entry : byClient.entrySet()) {
+					if (entry.getValue().size() > heaviestSize) {
+						heaviest = entry.getKey();
+						heaviestSize = entry.getValue().size();
+					}
+				}
+				if (heaviest == null || heaviestSize <= ownSize + 1) {
+					return false;
+				}
+				ArrayDeque<Runnable> victims = byClient.get(heaviest);
+				pushedOut = victims.pollLast();
+				count--;
+				if (victims.isEmpty()) {
+					byClient.remove(heaviest);
+					turns.remove(heaviest);
+				}
+			}
+			ArrayDeque<Runnable> tasks = byClient.get(client);
+			if (tasks == null) {
+				tasks = new ArrayDeque<>();
+				byClient.put(client, tasks);
+				turns.addLast(client);
+			}
+			tasks.addLast(task);
+			count++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+		// answered outside the lock, it writes to a socket
+		if (pushedOut instanceof Workers.Task) {
+			((Workers.Task) pushedOut).reject();
+		}
+		return true;
+	}
+
+	// caller holds the lock and there is something to take
+	private Runnable dequeue() {
+		Object client = turns.pollFirst();
+		ArrayDeque<Runnable> tasks = byClient.get(client);
+		Runnable task = tasks.pollFirst();
+		if (tasks.isEmpty()) {
+			byClient.remove(client);
+		} else {
+			turns.addLast(client);
+		}
+		count--;
+		return task;
+	}
+
+	@Override
+	public Runnable poll() {
+		lock.lock();
+		try {
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(Runnable task) throws InterruptedException {
+		while (!offer(task)) {
+			Thread.sleep(1);
+		}
+	}
+
+	@Override
+	public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!offer(task)) {
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	@Override
+	public Runnable peek() {
+		lock.lock();
+		try {
+			Object client = turns.peekFirst();
+			return client == null ? null : byClient.get(client).peekFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof Runnable)) {
+			return false;
+		}
+		Object client = client((Runnable) o);
+		lock.lock();
+		try {
+			ArrayDeque<Runnable> tasks = byClient.get(client);
+			if (tasks == null || !tasks.remove(o)) {
+				return false;
+			}
+			if (tasks.isEmpty()) {
+				byClient.remove(client);
+				turns.remove(client);
+			}
+			count--;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		lock.lock();
+		try {
+			int drained = 0;
+			while (count > 0 && drained < maxElements) {
+				c.add(dequeue());
+				drained++;
+			}
+			return drained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A snapshot in no particular order, it does not support remove.
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		lock.lock();
+		try {
+			List<Runnable> all = new ArrayList<>(count);
+			for (ArrayDeque<Runnable> tasks : byClient.values()) {
+				all.addAll(tasks);
+			}
+			return Collections.unmodifiableList(all).iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
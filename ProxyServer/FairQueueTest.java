@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the overload policies of the worker queue: the fair queue takes
+ * clients round robin and, when full, pushes out the newest task of the
+ * client with the most waiting; shed-oldest turns away the task that
+ * waited longest.
+ *
+ * Run: java FairQueueTest, exits with 1 if a check failed.
+ */
+public class FairQueueTest {
+	// names of the tasks run and rejected, in order
+	private static final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+	private static final List<String> rejected = Collections.synchronizedList(new ArrayList<>());
+
+	public static void main(String[] args) throws Exception {
+		roundRobin();
+		capacity();
+		shedOldest();
+		Checks.exit();
+	}
+
+	private static void roundRobin() {
+		FairQueue queue = new FairQueue(10);
+		for (String name : new String[] { "a1", "a2", "a3", "b1", "c1", "b2" }) {
+			queue.offer(new Task(name));
+		}
+		queue.offer(() -> ran.add("other"));
+		List<String> order = new ArrayList<>();
+		Runnable next;
+		while ((next = queue.poll()) != null) {
+			order.add(next instanceof Task ? ((Task) next).name : "other");
+		}
+		Checks.check(order.equals(List.of("a1", "b1", "c1", "other", "a2", "b2", "a3")),
+				"clients are taken round robin, each in its own order: " + order);
+	}
+
+	private static void capacity() {
+		rejected.clear();
+		FairQueue queue = new FairQueue(4);
+		for (String name : new String[] { "a1", "a2", "a3", "a4" }) {
+			queue.offer(new Task(name));
+		}
+		Checks.check(!queue.offer(new Task("a5")) && rejected.isEmpty(),
+				"a full queue refuses the client with the most waiting");
+		Checks.check(queue.offer(new Task("b1")) && rejected.equals(List.of("a4")),
+				"another client pushes out the newest task of the heaviest: " + rejected);
+		Checks.check(queue.offer(new Task("b2")) && rejected.equals(List.of("a4", "a3")),
+				"and again while it still has more: " + rejected);
+		Checks.check(!queue.offer(new Task("b3")), "two and two is fair, the next is refused");
+		Checks.check(queue.size() == 4 && queue.remainingCapacity() == 0, "the queue stays at its capacity");
+	}
+
+	private static void shedOldest() throws Exception {
+		rejected.clear();
+		ran.clear();
+		ExecutorService workers = Workers.create(ProxyConfig.fromArgs(
+				new String[] { "--threads=1", "--queue-size=2", "--overload=shed-oldest" }));
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		workers.execute(new Task("busy") {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		started.await();
+		workers.execute(new Task("first"));
+		workers.execute(new Task("second"));
+		workers.execute(new Task("third"));
+		Checks.check(rejected.equals(List.of("first")), "the task that waited longest is turned away: " + rejected);
+		release.countDown();
+		workers.shutdown();
+		workers.awaitTermination(5, TimeUnit.SECONDS);
+		Checks.check(ran.equals(List.of("second", "third")), "the newer ones run: " + ran);
+	}
+
+	// a connection of client "a", "b"... by the first letter of its name
+	private static class Task implements Workers.Task {
+		final String name;
+
+		Task(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Object client() {
+			return name.substring(0, 1);
+		}
+
+		@Override
+		public void reject() {
+			rejected.add(name);
+		}
+
+		@Override
+		public void run() {
+			ran.add(name);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * Count-min sketch with small saturating counters, used by TinyLFU to
+ * estimate how often a key was asked for. Counters are halved every
+ * sampleSize increments so old popularity fades out.
+ */
+class FrequencySketch {
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+	private final byte[][] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions;
+
+	public FrequencySketch(int expectedKeys) {
+		int width = Integer.highestOneBit(Math.max(expectedKeys, 64) - 1) << 1;
+		table = new byte[DEPTH][width];
+		mask = width - 1;
+		sampleSize = 10 * width;
+	}
+
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < DEPTH; i++) {
+			int index = indexOf(hash, i);
+			if (table[i][index] < MAX_COUNT) {
+				table[i][index]++;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int min = MAX_COUNT;
+		for (int i = 0; i < DEPTH; i++) {
+			min = Math.min(min, table[i][indexOf(hash, i)]);
+		}
+		return min;
+	}
+
+	private int indexOf(int hash, int row) {
+		int h = (hash ^ SEEDS[row]) * SEEDS[row];
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void reset() {
+		for (byte[] row : table) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] >>= 1;
+			}
+		}
+		additions /= 2;
+	}
+
+	private static int spread(int h) {
+		h ^= h >>> 17;
+		h *= 0xed5ad4bb;
+		h ^= h >>> 11;
+		return h;
+	}
+}
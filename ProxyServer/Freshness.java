@@ -0,0 +1,219 @@
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What the origin's Cache-Control, Expires, ETag and Last-Modified headers
+ * say about a response: whether we may store it, until when it is fresh
+ * and which validators we can revalidate it with.
+ */
+class Freshness {
+	// heuristic freshness is capped to a day, like most browsers do
+	private static final long MAX_HEURISTIC = 24L * 60 * 60 * 1000;
+
+	private final boolean storable;
+	private final long expiresAt;
+	private final String etag;
+	private final String lastModified;
+	// millis after expiry a stale copy may still be served, -1 if the origin did not say
+	private final long staleWhileRevalidate;
+	private final long staleIfError;
+	// the origin gave a lifetime with max-age, s-maxage or Expires
+	private final boolean explicit;
+
+	Freshness(boolean storable, long expiresAt, String etag, String lastModified) {
+		this(storable, expiresAt, etag, lastModified, -1, -1);
+	}
+
+	Freshness(boolean storable, long expiresAt, String etag, String lastModified, long staleWhileRevalidate,
+			long staleIfError) {
+		this(storable, expiresAt, etag, lastModified, staleWhileRevalidate, staleIfError, false);
+	}
+
+	private Freshness(boolean storable, long expiresAt, String etag, String lastModified, long staleWhileRevalidate,
+			long staleIfError, boolean explicit) {
+		this.storable = storable;
+		this.expiresAt = expiresAt;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.staleWhileRevalidate = staleWhileRevalidate;
+		this.staleIfError = staleIfError;
+		this.explicit = explicit;
+	}
+
+	public boolean isStorable() {
+		return storable;
+	}
+
+	/**
+	 * Whether a response with this status may be stored. Without an explicit
+	 * lifetime only the statuses that are cacheable by default are, a 302 or
+	 * 303 without max-age is not.
+	 */
+	public boolean isStorable(int status) {
+		return storable && (explicit || heuristicallyCacheable(status));
+	}
+
+	/**
+	 * The statuses a cache may store without being told to, RFC 9111 4.2.2.
+	 */
+	static boolean heuristicallyCacheable(int status) {
+		switch (status) {
+		case 200:
+		case 203:
+		case 204:
+		case 206:
+		case 300:
+		case 301:
+		case 308:
+		case 404:
+		case 405:
+		case 410:
+		case 414:
+		case 501:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	public long expiresAt() {
+		return expiresAt;
+	}
+
+	public String etag() {
+		return etag;
+	}
+
+	public String lastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * How long after expiry the response may be served while it is fetched
+	 * again in the background, from stale-while-revalidate. 0 if the origin
+	 * forbids serving it stale, -1 if it did not say.
+	 */
+	public long staleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+
+	/**
+	 * How long after expiry the response may be served when the origin
+	 * fails, from stale-if-error. Same 0 and -1 as above.
+	 */
+	public long staleIfError() {
+		return staleIfError;
+	}
+
+	/**
+	 * Reads the response headers as given by HttpURLConnection.getHeaderFields()
+	 * or HttpHead.fields. now is the time the response was received,
+	 * defaultTtl is used when the origin gives no hint at all.
+	 * After a 304 pass the stored head merged with the 304's headers,
+	 * a 304 often leaves out Cache-Control or Last-Modified.
+	 */
+	public static Freshness parse(Map<String, List<String>> headers, long now, long defaultTtl) {
+		boolean storable = true;
+		boolean revalidateAlways = false;
+		long maxAge = -1;
+		long sharedMaxAge = -1;
+		long staleWhileRevalidate = -1;
+		long staleIfError = -1;
+		boolean mustRevalidate = false;
+		String cacheControl = header(headers, "Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-store") || directive.startsWith("private")) {
+					// we are a shared cache, private responses are not for us
+					storable = false;
+				} else if (directive.startsWith("no-cache")) {
+					revalidateAlways = true;
+				} else if (directive.startsWith("s-maxage=")) {
+					sharedMaxAge = seconds(directive.substring(9));
+				} else if (directive.startsWith("max-age=")) {
+					maxAge = seconds(directive.substring(8));
+				} else if (directive.startsWith("stale-while-revalidate=")) {
+					staleWhileRevalidate = seconds(directive.substring(23)) * 1000;
+				} else if (directive.startsWith("stale-if-error=")) {
+					staleIfError = seconds(directive.substring(15)) * 1000;
+				} else if (directive.equals("must-revalidate") || directive.equals("proxy-revalidate")) {
+					mustRevalidate = true;
+				}
+			}
+		}
+		String pragma = header(headers, "Pragma");
+		if (cacheControl == null && pragma != null && pragma.toLowerCase(Locale.ROOT).contains("no-cache")) {
+			revalidateAlways = true;
+		}
+		String etag = header(headers, "ETag");
+		String lastModified = header(headers, "Last-Modified");
+		String expires = header(headers, "Expires");
+
+		long date = date(header(headers, "Date"), now);
+		long expiresAt;
+		if (revalidateAlways) {
+			expiresAt = now;
+		} else if (sharedMaxAge >= 0) {
+			expiresAt = now + sharedMaxAge * 1000;
+		} else if (maxAge >= 0) {
+			expiresAt = now + maxAge * 1000;
+		} else if (expires != null) {
+			// an invalid Expires like "0" means already expired
+			expiresAt = now + Math.max(0, date(expires, date) - date);
+		} else if (lastModified != null && date(lastModified, date) < date) {
+			// no explicit lifetime, take 10% of the age of the resource
+			long age = date - date(lastModified, date);
+			expiresAt = now + Math.min(age / 10, MAX_HEURISTIC);
+		} else {
+			expiresAt = now + defaultTtl;
+		}
+		// these ask to never see a stale copy
+		if (mustRevalidate || revalidateAlways) {
+			staleWhileRevalidate = 0;
+			staleIfError = 0;
+		} else if (sharedMaxAge >= 0) {
+			// s-maxage implies proxy-revalidate, only what the origin allows itself
+			staleWhileRevalidate = Math.max(0, staleWhileRevalidate);
+			staleIfError = Math.max(0, staleIfError);
+		}
+		boolean explicit = sharedMaxAge >= 0 || maxAge >= 0 || expires != null;
+		return new Freshness(storable, expiresAt, etag, lastModified, staleWhileRevalidate, staleIfError, explicit);
+	}
+
+	/**
+	 * Looks up a header ignoring case and returns its first value.
+	 */
+	static String header(Map<String, List<String>> headers, String name) {
+		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+			if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(name)
+					&& entry.getValue() != null && !entry.getValue().isEmpty()) {
+				return entry.getValue().get(0);
+			}
+		}
+		return null;
+	}
+
+	private static long seconds(String value) {
+		try {
+			return Long.parseLong(value.trim().replace("\"", ""));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static long date(String value, long fallback) {
+		if (value == null) {
+			return fallback;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return value.trim().equals("0") || value.trim().startsWith("-") ? 0 : fallback;
+		}
+	}
+}
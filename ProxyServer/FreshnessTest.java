@@ -0,0 +1,120 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks what we decide from the origin's and the client's cache headers:
+ * lifetimes, what a 304 keeps from the stored head, which statuses and
+ * Vary headers can be stored and the client's no-cache and no-store.
+ *
+ * Run: java FreshnessTest, exits with 1 if a check failed.
+ */
+public class FreshnessTest {
+	private static final long NOW = 1_700_000_000_000L;
+	private static final long TTL = 60_000;
+	public static void main(String[] args) {
+		lifetimes();
+		notModified();
+		statuses();
+		vary();
+		requestDirectives();
+		Checks.exit();
+	}
+
+	private static void lifetimes() {
+		Checks.check(Freshness.parse(headers("Cache-Control", "max-age=30"), NOW, TTL).expiresAt() == NOW + 30_000,
+				"max-age");
+		Checks.check(Freshness.parse(headers("Cache-Control", "max-age=30, s-maxage=90"), NOW, TTL).expiresAt() == NOW + 90_000,
+				"s-maxage wins over max-age");
+		Checks.check(Freshness.parse(headers("Cache-Control", "no-cache, max-age=30"), NOW, TTL).expiresAt() == NOW,
+				"no-cache expires right away");
+		Checks.check(!Freshness.parse(headers("Cache-Control", "private, max-age=30"), NOW, TTL).isStorable(),
+				"private is not for a shared cache");
+		Checks.check(Freshness.parse(headers("Expires", "0"), NOW, TTL).expiresAt() == NOW, "invalid Expires is expired");
+		Checks.check(Freshness.parse(headers(), NOW, TTL).expiresAt() == NOW + TTL, "default ttl without any hint");
+		// Last-Modified 10 days before Date, 10% of that is a day, the cap
+		Checks.check(Freshness.parse(headers("Date", "Tue, 14 Nov 2023 22:13:20 GMT",
+				"Last-Modified", "Sat, 04 Nov 2023 22:13:20 GMT"), NOW, TTL).expiresAt() == NOW + 24L * 60 * 60 * 1000,
+				"heuristic from Last-Modified");
+		Freshness swr = Freshness.parse(headers("Cache-Control", "max-age=1, stale-while-revalidate=10, must-revalidate"),
+				NOW, TTL);
+		Checks.check(swr.staleWhileRevalidate() == 0 && swr.staleIfError() == 0, "must-revalidate forbids stale copies");
+	}
+
+	private static void notModified() {
+		byte[] stored = HttpHead.origin("HTTP/1.1 200 OK", headers("Content-Type", "text/plain",
+				"Cache-Control", "max-age=120, stale-if-error=300", "ETag", "\"v1\"",
+				"Last-Modified", "Sat, 04 Nov 2023 22:13:20 GMT"), false, false);
+
+		// a 304 that only repeats the validator keeps the stored max-age,
+		// its own headers alone would give the default ttl
+		Map<String, List<String>> bare = headers(null, "HTTP/1.1 304 Not Modified", "ETag", "\"v1\"");
+		byte[] merged = HttpHead.merge(stored, bare);
+		Freshness freshness = Freshness.parse(HttpHead.fields(merged), NOW, TTL);
+		Checks.check(freshness.expiresAt() == NOW + 120_000, "304 keeps the stored max-age");
+		Checks.check(freshness.staleIfError() == 300_000, "304 keeps the stored stale-if-error");
+		Checks.check("Sat, 04 Nov 2023 22:13:20 GMT".equals(freshness.lastModified()), "304 keeps the stored Last-Modified");
+		Checks.check(new String(merged, StandardCharsets.ISO_8859_1).startsWith("HTTP/1.1 200 OK\r\n"),
+				"merged head keeps the stored status line");
+
+		// what the 304 does send replaces the stored header
+		Map<String, List<String>> updated = headers(null, "HTTP/1.1 304 Not Modified", "ETag", "\"v1\"",
+				"Cache-Control", "max-age=5");
+		freshness = Freshness.parse(HttpHead.fields(HttpHead.merge(stored, updated)), NOW, TTL);
+		Checks.check(freshness.expiresAt() == NOW + 5_000, "304 Cache-Control replaces the stored one");
+		Checks.check(freshness.staleIfError() == -1, "replaced Cache-Control drops the old stale-if-error");
+
+		CacheEntry entry = new CacheEntry("http://example.com/", CachedBody.of(new byte[] { 1, 2, 3 }), stored, null,
+				1000, NOW - 200_000, Freshness.parse(HttpHead.fields(stored), NOW - 200_000, TTL));
+		entry.hit();
+		CacheEntry revalidated = entry.revalidated(merged, Freshness.parse(HttpHead.fields(merged), NOW, TTL));
+		Checks.check(revalidated.body() == entry.body() && revalidated.hits() == 1, "revalidated keeps the body and hits");
+		Checks.check(revalidated.isFresh(NOW + 60_000) && !revalidated.isFresh(NOW + 121_000), "revalidated is fresh again");
+	}
+
+	private static void statuses() {
+		Map<String, List<String>> none = headers();
+		Map<String, List<String>> maxAge = headers("Cache-Control", "max-age=60");
+		Checks.check(Freshness.parse(none, NOW, TTL).isStorable(200), "200 is cacheable by default");
+		Checks.check(Freshness.parse(none, NOW, TTL).isStorable(301), "301 is cacheable by default");
+		Checks.check(!Freshness.parse(none, NOW, TTL).isStorable(302), "302 needs a lifetime");
+		Checks.check(!Freshness.parse(none, NOW, TTL).isStorable(201), "201 needs a lifetime");
+		Checks.check(Freshness.parse(maxAge, NOW, TTL).isStorable(302), "302 with max-age");
+		Checks.check(Freshness.parse(headers("Expires", "Tue, 14 Nov 2023 23:13:20 GMT"), NOW, TTL).isStorable(307),
+				"307 with Expires");
+		Checks.check(!Freshness.parse(headers("Cache-Control", "no-store, max-age=60"), NOW, TTL).isStorable(200),
+				"no-store is never stored");
+	}
+
+	private static void vary() {
+		CacheKey.Builder keys = new CacheKey.Builder(Arrays.asList("Cookie", "Authorization"));
+		Checks.check(keys.covers(headers()), "no Vary");
+		Checks.check(keys.covers(headers("Vary", "Accept-Encoding")), "Vary on the encoding");
+		Checks.check(keys.covers(headers("vary", "cookie, Accept-Encoding")), "Vary on a header we key on");
+		Checks.check(!keys.covers(headers("Vary", "User-Agent")), "Vary on a header we do not key on");
+		Checks.check(!keys.covers(headers("Vary", "*")), "Vary *");
+	}
+
+	private static void requestDirectives() {
+		List<String> noCache = Arrays.asList("GET http://example.com/ HTTP/1.1", "Cache-Control: max-age=0, no-cache");
+		Checks.check(HttpHead.requests(noCache, "no-cache") && HttpHead.requests(noCache, "max-age=0")
+				&& !HttpHead.requests(noCache, "no-store"), "request Cache-Control");
+		List<String> pragma = Arrays.asList("GET http://example.com/ HTTP/1.0", "Pragma: no-cache");
+		Checks.check(HttpHead.requests(pragma, "no-cache"), "Pragma no-cache without Cache-Control");
+		List<String> both = Arrays.asList("GET http://example.com/ HTTP/1.1", "Pragma: no-cache",
+				"Cache-Control: max-age=10");
+		Checks.check(!HttpHead.requests(both, "no-cache"), "Cache-Control wins over Pragma");
+	}
+
+	// name, value pairs in the shape of HttpURLConnection.getHeaderFields()
+	private static Map<String, List<String>> headers(String... pairs) {
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		for (int i = 0; i < pairs.length; i += 2) {
+			headers.put(pairs[i], Collections.singletonList(pairs[i + 1]));
+		}
+		return headers;
+	}
+}
@@ -0,0 +1,149 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Name lookups for the log, done off the request path.
+ * A lookup that is not cached yet is started in the background and the
+ * caller gets the raw address for now, the next request finds the name.
+ * Results are kept for a TTL, failures too so we dont ask again and again.
+ * When there are more than maxEntries, a resolver thread trims them to
+ * nine tenths of that, the request that noticed does not wait for it.
+ */
+class HostResolver {
+	private static final Object PENDING = new Object();
+
+	private final boolean rawIpsOnly;
+	private final long ttl;
+	private final int maxEntries;
+	private final Map<String, Object> lookups = new ConcurrentHashMap<>();
+	// a trim is queued or running
+	private final AtomicBoolean trimming = new AtomicBoolean();
+	private final ThreadPoolExecutor executor;
+
+	public HostResolver(boolean rawIpsOnly, long ttl, int maxEntries) {
+		this.rawIpsOnly = rawIpsOnly;
+		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+		// few threads and a bounded queue, when dns is slow we just log addresses
+		this.executor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(1000), r -> {
+					Thread thread = new Thread(r, "dns-resolver");
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	public static HostResolver fromConfig(ProxyConfig config) {
+		return new HostResolver(config.getBoolean("log-raw-ips", false),
+				config.getInt("dns-ttl", 300) * 1000L, config.getInt("dns-cache-size", 10000));
+	}
+
+	/**
+	 * Reverse lookup of a client or server address, never blocks.
+	 */
+	public String hostName(InetAddress address) {
+		String ip = address.getHostAddress();
+		if (rawIpsOnly) {
+			return ip;
+		}
+		String name = cached("ptr:" + ip, () -> InetAddress.getByAddress(address.getAddress()).getHostName());
+		return name == null ? ip : name;
+	}
+
+	/**
+	 * Forward lookup of an origin host, never blocks.
+	 * Returns the host itself until the address is known.
+	 */
+	public String hostAddress(String host) {
+		if (rawIpsOnly) {
+			return host;
+		}
+		String ip = cached("a:" + host.toLowerCase(), () -> InetAddress.getByName(host).getHostAddress());
+		return ip == null ? host : ip;
+	}
+
+	private interface Lookup {
+		String resolve() throws UnknownHostException;
+	}
+
+	private static class Resolved {
+		final String value;
+		final long expiresAt;
+
+		Resolved(String value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// returns the cached value, or starts the lookup and returns null
+	private String cached(String key, Lookup lookup) {
+		Object entry = lookups.get(key);
+		long now = System.currentTimeMillis();
+		if (entry instanceof Resolved && ((Resolved) entry).expiresAt > now) {
+			return ((Resolved) entry).value;
+		}
+		if (entry == PENDING) {
+			return null;
+		}
+		// only the first caller starts the lookup
+		boolean started = entry == null ? lookups.putIfAbsent(key, PENDING) == null : lookups.replace(key, entry, PENDING);
+		if (started) {
+			if (lookups.size() > maxEntries && trimming.compareAndSet(false, true)) {
+				try {
+					executor.execute(this::trim);
+				} catch (RejectedExecutionException e) {
+					trimming.set(false);
+				}
+			}
+			try {
+				executor.execute(() -> {
+					String value = null;
+					try {
+						value = lookup.resolve();
+					} catch (UnknownHostException e) {
+						// remembered as unknown, we log the address
+					}
+					lookups.put(key, new Resolved(value, System.currentTimeMillis() + ttl));
+				});
+			} catch (RejectedExecutionException e) {
+				// queue is full, try again with a later request
+				lookups.remove(key, PENDING);
+			}
+		}
+		return entry instanceof Resolved ? ((Resolved) entry).value : null;
+	}
+
+	// drops expired entries, and some more if we are still too big
+	// runs on a resolver thread, a tenth of room is made so it is not needed again right away
+	private void trim() {
+		try {
+			int target = maxEntries - maxEntries / 10;
+			long now = System.currentTimeMillis();
+			lookups.values().removeIf(v -> v instanceof Resolved && ((Resolved) v).expiresAt <= now);
+			Iterator<Object> it = lookups.values().iterator();
+			while (lookups.size() > target && it.hasNext()) {
+				if (it.next() != PENDING) {
+					it.remove();
+				}
+			}
+		} finally {
+			trimming.set(false);
+		}
+	}
+
+	/**
+	 * Names and addresses cached or being looked up.
+	 */
+	int size() {
+		return lookups.size();
+	}
+}
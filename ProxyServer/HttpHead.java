@@ -0,0 +1,319 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Builds the status line and headers the proxy sends before a body.
+ * Every response is framed by Content-Length or chunked encoding,
+ * that is what lets the client keep the connection open. Responses that
+ * cannot have a body have neither, the head is all there is.
+ */
+class HttpHead {
+	/**
+	 * contentLength of a response without body (1xx, 204, 304 or the
+	 * answer to a HEAD), no framing header is written for it.
+	 */
+	public static final long NO_BODY = -2;
+
+	private static final byte[] PARTIAL_CONTENT = "HTTP/1.1 206 Partial Content".getBytes(StandardCharsets.ISO_8859_1);
+
+	private HttpHead() {
+	}
+
+	/**
+	 * contentLength below 0 means the length is not known yet
+	 * and the body will be sent chunked, NO_BODY that there is none.
+	 */
+	public static byte[] build(String statusLine, String contentType, long contentLength, boolean keepAlive) {
+		return build(statusLine, contentType, null, contentLength, keepAlive);
+	}
+
+	/**
+	 * Same with a Content-Encoding, an encoded body also tells caches
+	 * after us that it depends on Accept-Encoding.
+	 */
+	public static byte[] build(String statusLine, String contentType, String contentEncoding, long contentLength,
+			boolean keepAlive) {
+		StringBuilder head = new StringBuilder(128);
+		head.append(statusLine).append("\r\n");
+		if (contentType != null) {
+			head.append("Content-Type: ").append(contentType).append("\r\n");
+		}
+		if (contentEncoding != null) {
+			head.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+			head.append("Vary: Accept-Encoding\r\n");
+		}
+		if (contentLength >= 0) {
+			head.append("Content-Length: ").append(contentLength).append("\r\n");
+		} else if (contentLength != NO_BODY) {
+			head.append("Transfer-Encoding: chunked\r\n");
+		}
+		head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+		return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * The origin's status line and end to end headers, without the end of
+	 * the head. This is what the cache keeps to answer hits with, the
+	 * framing and connection headers are added per response by tail.
+	 * Cookies are only kept when withCookies is set, a shared cache must
+	 * not hand one client's cookies to the next.
+	 */
+	public static byte[] origin(String statusLine, Map<String, List<String>> headers, boolean encoded,
+			boolean withCookies) {
+		StringBuilder head = new StringBuilder(512);
+		head.append(statusLine).append("\r\n");
+		boolean varyEncoding = false;
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			String name = header.getKey();
+			if (name == null || !isEndToEnd(name, withCookies)) {
+				continue;
+			}
+			for (String value : header.getValue()) {
+				head.append(name).append(": ").append(value).append("\r\n");
+				if (name.equalsIgnoreCase("vary") && value.toLowerCase(Locale.ROOT).contains("accept-encoding")) {
+					varyEncoding = true;
+				}
+			}
+		}
+		// the body we send depends on the client's Accept-Encoding
+		if (encoded && !varyEncoding) {
+			head.append("Vary: Accept-Encoding\r\n");
+		}
+		return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * A stored head with the headers of a 304 Not Modified put in place
+	 * of the old ones of the same name.
+	 */
+	public static byte[] merge(byte[] head, Map<String, List<String>> updated) {
+		String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+		List<String> replaced = new ArrayList<>();
+		for (String name : updated.keySet()) {
+			if (name != null && isEndToEnd(name, false) && !name.equalsIgnoreCase("content-type")) {
+				replaced.add(name.toLowerCase(Locale.ROOT));
+			}
+		}
+		StringBuilder merged = new StringBuilder(head.length + 128);
+		merged.append(lines[0]).append("\r\n");
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			String name = colon < 0 ? lines[i] : lines[i].substring(0, colon).trim();
+			if (!replaced.contains(name.toLowerCase(Locale.ROOT))) {
+				merged.append(lines[i]).append("\r\n");
+			}
+		}
+		for (Map.Entry<String, List<String>> header : updated.entrySet()) {
+			if (header.getKey() != null && replaced.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+				for (String value : header.getValue()) {
+					merged.append(header.getKey()).append(": ").append(value).append("\r\n");
+				}
+			}
+		}
+		return merged.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * The headers of a stored head by name, in the shape of
+	 * HttpURLConnection.getHeaderFields(): the status line under null.
+	 */
+	public static Map<String, List<String>> fields(byte[] head) {
+		Map<String, List<String>> fields = new LinkedHashMap<>();
+		String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+		fields.put(null, Collections.singletonList(lines[0]));
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon > 0) {
+				fields.computeIfAbsent(lines[i].substring(0, colon).trim(), name -> new ArrayList<>())
+				.add(lines[i].substring(colon + 1).trim());
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * The rest of a head started by origin: encoding, length (below 0 means
+	 * chunked, NO_BODY none), the Age of a cached copy (below 0 for none) and the connection.
+	 */
+	public static byte[] tail(String contentEncoding, long contentLength, long age, boolean keepAlive) {
+		return tail(contentEncoding, contentLength, null, age, keepAlive);
+	}
+
+	/**
+	 * Same with the Content-Range of a 206 or 416, null for none.
+	 */
+	public static byte[] tail(String contentEncoding, long contentLength, String contentRange, long age,
+			boolean keepAlive) {
+		StringBuilder tail = new StringBuilder(128);
+		if (contentEncoding != null) {
+			tail.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+		}
+		if (contentRange != null) {
+			tail.append("Content-Range: ").append(contentRange).append("\r\n");
+		}
+		if (contentLength >= 0) {
+			tail.append("Content-Length: ").append(contentLength).append("\r\n");
+		} else if (contentLength != NO_BODY) {
+			tail.append("Transfer-Encoding: chunked\r\n");
+		}
+		if (age >= 0) {
+			tail.append("Age: ").append(age).append("\r\n");
+		}
+		tail.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+		return tail.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * A stored head as the head of a 206 Partial Content: our status line
+	 * and the stored headers after the origin's, which are not copied.
+	 */
+	public static ByteBuffer[] partial(byte[] head) {
+		int end = 0;
+		while (end + 1 < head.length && !(head[end] == '\r' && head[end + 1] == '\n')) {
+			end++;
+		}
+		return new ByteBuffer[] { ByteBuffer.wrap(PARTIAL_CONTENT), ByteBuffer.wrap(head, end, head.length - end) };
+	}
+
+	// framing, connection and per response headers are ours to write
+	private static boolean isEndToEnd(String name, boolean withCookies) {
+		String lower = name.toLowerCase(Locale.ROOT);
+		switch (lower) {
+		case "content-length":
+		case "content-encoding":
+		case "content-range":
+		case "transfer-encoding":
+		case "connection":
+		case "proxy-connection":
+		case "keep-alive":
+		case "te":
+		case "trailer":
+		case "upgrade":
+		case "proxy-authenticate":
+		case "age":
+			return false;
+		case "set-cookie":
+		case "set-cookie2":
+			return withCookies;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Whether the response to method with this status has a body,
+	 * RFC 9110 6.4.1: not for HEAD, 1xx, 204 and 304.
+	 */
+	public static boolean hasBody(String method, int status) {
+		return !method.equalsIgnoreCase("HEAD") && status >= 200 && status != 204 && status != 304;
+	}
+
+	/**
+	 * The status code of a head starting with a status line, 0 if it has none.
+	 */
+	public static int status(byte[] head) {
+		int space = 0;
+		while (space < head.length && head[space] != ' ') {
+			space++;
+		}
+		int status = 0;
+		for (int i = space + 1; i < space + 4; i++) {
+			if (i >= head.length || head[i] < '0' || head[i] > '9') {
+				return 0;
+			}
+			status = status * 10 + head[i] - '0';
+		}
+		return status;
+	}
+
+	/**
+	 * Status line of the origin's response as HTTP/1.1, the version
+	 * we speak to the client is ours and not the origin's.
+	 */
+	public static String statusLine(int code, String message) {
+		return "HTTP/1.1 " + code + " " + (message == null ? "" : message);
+	}
+
+	/**
+	 * HTTP/1.1 clients keep the connection unless they say close,
+	 * HTTP/1.0 clients only if they ask for keep-alive.
+	 */
+	public static boolean wantsKeepAlive(List<String> requestComponents) {
+		String requestLine = requestComponents.get(0).trim();
+		boolean http11 = requestLine.endsWith("HTTP/1.1");
+		for (int i = 1; i < requestComponents.size(); i++) {
+			String line = requestComponents.get(i).toLowerCase(Locale.ROOT);
+			if (line.startsWith("connection:") || line.startsWith("proxy-connection:")) {
+				if (line.contains("close")) {
+					return false;
+				}
+				if (line.contains("keep-alive")) {
+					http11 = true;
+				}
+			}
+		}
+		return http11;
+	}
+
+	/**
+	 * True if the client's Accept-Encoding takes the encoding,
+	 * no header or a q of 0 means it does not.
+	 */
+	public static boolean accepts(List<String> requestComponents, String encoding) {
+		for (int i = 1; i < requestComponents.size(); i++) {
+			String line = requestComponents.get(i).toLowerCase(Locale.ROOT);
+			if (!line.startsWith("accept-encoding:")) {
+				continue;
+			}
+			for (String coding : line.substring(16).split(",")) {
+				String[] parts = coding.split(";");
+				String name = parts[0].trim();
+				if (!name.equals(encoding) && !name.equals("*")) {
+					continue;
+				}
+				String q = parts.length > 1 ? parts[1].trim() : "";
+				return !q.matches("q\\s*=\\s*0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * True if the client's Cache-Control has the directive, like no-store.
+	 * An HTTP/1.0 Pragma: no-cache counts as no-cache when there is no Cache-Control.
+	 */
+	public static boolean requests(List<String> requestComponents, String directive) {
+		boolean cacheControl = false;
+		boolean pragma = false;
+		for (int i = 1; i < requestComponents.size(); i++) {
+			String line = requestComponents.get(i).toLowerCase(Locale.ROOT);
+			if (line.startsWith("cache-control:")) {
+				cacheControl = true;
+				for (String value : line.substring(14).split(",")) {
+					if (value.trim().equals(directive)) {
+						return true;
+					}
+				}
+			} else if (line.startsWith("pragma:") && line.contains("no-cache")) {
+				pragma = true;
+			}
+		}
+		return !cacheControl && pragma && directive.equals("no-cache");
+	}
+
+	/**
+	 * Headers that only mean something for one connection, we dont forward them.
+	 */
+	public static boolean isHopByHop(String line) {
+		String lower = line.trim().toLowerCase(Locale.ROOT);
+		return lower.startsWith("connection:") || lower.startsWith("proxy-connection:")
+				|| lower.startsWith("keep-alive:") || lower.startsWith("te:")
+				|| lower.startsWith("upgrade:") || lower.startsWith("transfer-encoding:");
+	}
+}
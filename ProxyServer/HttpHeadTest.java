@@ -0,0 +1,59 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks how heads are framed: a length, chunked when the length is not
+ * known, and nothing at all for the responses that cannot have a body.
+ *
+ * Run: java HttpHeadTest, exits with 1 if a check failed.
+ */
+public class HttpHeadTest {
+	public static void main(String[] args) {
+		framing();
+		bodiless();
+		status();
+		Checks.exit();
+	}
+
+	private static void framing() {
+		Checks.check(text(HttpHead.build("HTTP/1.1 200 OK", "text/plain", 5, true))
+				.equals("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 5\r\nConnection: keep-alive\r\n\r\n"),
+				"known length is sent as Content-Length");
+		Checks.check(text(HttpHead.build("HTTP/1.1 200 OK", null, -1, false))
+				.equals("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nConnection: close\r\n\r\n"),
+				"unknown length is sent chunked");
+		Checks.check(text(HttpHead.tail(null, -1, 3, true))
+				.equals("Transfer-Encoding: chunked\r\nAge: 3\r\nConnection: keep-alive\r\n\r\n"),
+				"tail of an unknown length is chunked");
+	}
+
+	private static void bodiless() {
+		int[] statuses = { 100, 101, 204, 304 };
+		for (int status : statuses) {
+			Checks.check(!HttpHead.hasBody("GET", status), status + " has no body");
+		}
+		Checks.check(!HttpHead.hasBody("HEAD", 200), "the answer to HEAD has no body");
+		Checks.check(HttpHead.hasBody("GET", 200) && HttpHead.hasBody("GET", 404) && HttpHead.hasBody("GET", 302),
+				"200, 302 and 404 have a body");
+		String head = text(HttpHead.build("HTTP/1.1 204 No Content", null, HttpHead.NO_BODY, true));
+		Checks.check(head.equals("HTTP/1.1 204 No Content\r\nConnection: keep-alive\r\n\r\n"),
+				"204 head has no framing header: " + head);
+		String tail = text(HttpHead.tail("gzip", HttpHead.NO_BODY, 0, true));
+		Checks.check(tail.equals("Content-Encoding: gzip\r\nAge: 0\r\nConnection: keep-alive\r\n\r\n"),
+				"304 tail has no framing header: " + tail);
+	}
+
+	private static void status() {
+		Checks.check(HttpHead.status(bytes("HTTP/1.1 204 No Content\r\nAge: 1\r\n")) == 204, "status of a stored head");
+		Checks.check(HttpHead.status(bytes("HTTP/1.0 200\r\n")) == 200, "status line without reason");
+		Checks.check(HttpHead.status(bytes("HTTP/1.1")) == 0 && HttpHead.status(bytes("HTTP/1.1 2x0 OK")) == 0,
+				"no status in a broken head");
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static String text(byte[] bytes) {
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram in the style of HdrHistogram.
+ * Values are kept in microseconds in log-linear buckets, every power of two
+ * is split in 64 linear steps, so any value comes back within 1.6% and the
+ * whole range up to about 19 hours fits in 16KB of counters.
+ * Many threads can record at the same time, reads are not a snapshot
+ * but close enough for monitoring.
+ */
+class LatencyHistogram {
+	// 2^7 = 128 exact values before the first doubling
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_HALF = 1 << (SUB_BUCKET_BITS - 1);
+	// 2^36 microseconds is the highest value we keep apart
+	private static final int MAX_BITS = 36;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sumMicros = new AtomicLong();
+
+	public void recordNanos(long nanos) {
+		long micros = Math.max(0, Math.min(MAX_VALUE, nanos / 1000));
+		// count first, so whoever reads the buckets and then the count
+		// never sees more in the buckets than in the count
+		count.incrementAndGet();
+		sumMicros.addAndGet(micros);
+		counts.incrementAndGet(index(micros));
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public double sumSeconds() {
+		return sumMicros.get() / 1e6;
+	}
+
+	/**
+	 * Value at the given quantile (0-1) in seconds, 0 if nothing was recorded.
+	 */
+	public double quantileSeconds(double q) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(q * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return highestEquivalent(i) / 1e6;
+			}
+		}
+		return MAX_VALUE / 1e6;
+	}
+
+	/**
+	 * For each of the ascending bounds in seconds, how many values were
+	 * at or below it. The bucket a bound falls in is counted whole, so
+	 * values up to 1.6% above a bound can be in its count.
+	 */
+	public long[] countsAtOrBelow(double[] boundsSeconds) {
+		long[] result = new long[boundsSeconds.length];
+		long seen = 0;
+		int i = 0;
+		for (int b = 0; b < boundsSeconds.length; b++) {
+			int last = index(Math.max(0, Math.min(MAX_VALUE, (long) (boundsSeconds[b] * 1e6))));
+			for (; i <= last; i++) {
+				seen += counts.get(i);
+			}
+			result[b] = seen;
+		}
+		return result;
+	}
+
+	// bucket of a value, the linear steps of one power of two are next to each other
+	static int index(long value) {
+		if (value < (1 << SUB_BUCKET_BITS)) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+	}
+
+	// highest value that lands in the bucket
+	static long highestEquivalent(int index) {
+		if (index < (1 << SUB_BUCKET_BITS)) {
+			return index;
+		}
+		int shift = index / SUB_BUCKET_HALF - 1;
+		long step = index - (long) shift * SUB_BUCKET_HALF;
+		return ((step + 1) << shift) - 1;
+	}
+}
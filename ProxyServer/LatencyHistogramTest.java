@@ -0,0 +1,86 @@
+/**
+ * Checks the bucket math of the latency histogram, its quantiles with
+ * known samples, and how /__metrics renders it.
+ * Like the proxy it writes log.txt into the working directory.
+ *
+ * Run: java LatencyHistogramTest, exits with 1 if a check failed.
+ */
+public class LatencyHistogramTest {
+	public static void main(String[] args) throws Exception {
+		buckets();
+		quantiles();
+		render();
+		Checks.exit();
+	}
+
+	private static void buckets() {
+		boolean exact = true;
+		for (int v = 0; v < 128; v++) {
+			exact &= LatencyHistogram.index(v) == v && LatencyHistogram.highestEquivalent(v) == v;
+		}
+		Checks.check(exact, "values below 128 have a bucket of their own");
+		Checks.check(LatencyHistogram.index(128) == 128 && LatencyHistogram.index(129) == 128
+				&& LatencyHistogram.index(130) == 129, "from 128 on two values share a bucket");
+		Checks.check(LatencyHistogram.index(255) == 191 && LatencyHistogram.index(256) == 192,
+				"the next power of two starts the next 64 buckets");
+		boolean close = true;
+		int previous = -1;
+		for (long v = 0; v < 1L << 36; v = v < 1000 ? v + 1 : v + v / 7) {
+			int index = LatencyHistogram.index(v);
+			long highest = LatencyHistogram.highestEquivalent(index);
+			close &= index >= previous && highest >= v && highest - v <= v / 64;
+			close &= LatencyHistogram.index(highest) == index && LatencyHistogram.index(highest + 1) == index + 1;
+			previous = index;
+		}
+		Checks.check(close, "buckets grow with the value and are within 1/64 of it");
+	}
+
+	private static void quantiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Checks.check(histogram.quantileSeconds(0.5) == 0, "empty histogram has 0 for every quantile");
+		for (int i = 100; i >= 1; i--) {
+			histogram.recordNanos(i * 1000L);
+		}
+		histogram.recordNanos(-5);
+		Checks.check(histogram.count() == 101, "count");
+		Checks.check(Math.abs(histogram.sumSeconds() - 5050e-6) < 1e-12, "sum in seconds");
+		Checks.check(histogram.quantileSeconds(0) == 0, "negative time counts as 0, the lowest value");
+		Checks.check(histogram.quantileSeconds(0.5) == 50e-6, "median, got " + histogram.quantileSeconds(0.5));
+		Checks.check(histogram.quantileSeconds(0.99) == 99e-6, "p99, got " + histogram.quantileSeconds(0.99));
+		Checks.check(histogram.quantileSeconds(1) == 100e-6, "max");
+		long[] counts = histogram.countsAtOrBelow(new double[] { 0, 50e-6, 100e-6, 1 });
+		Checks.check(counts[0] == 1 && counts[1] == 51 && counts[2] == 101 && counts[3] == 101,
+				"counts at or below each bound are cumulative");
+
+		LatencyHistogram slow = new LatencyHistogram();
+		slow.recordNanos(3_000_000_000L);
+		double p50 = slow.quantileSeconds(0.5);
+		Checks.check(p50 >= 3 && p50 <= 3 * 1.016, "3s comes back within 1.6%, got " + p50);
+		slow.recordNanos(Long.MAX_VALUE);
+		Checks.check(slow.quantileSeconds(1) == ((1L << 36) - 1) / 1e6, "values past the range are kept at the top");
+	}
+
+	private static void render() throws Exception {
+		ProxyContext context = new ProxyContext(ProxyConfig.fromArgs(new String[0]));
+		for (int i = 0; i < 3; i++) {
+			context.metrics.served(true, 200_000);
+		}
+		context.metrics.served(true, 3_000_000);
+		context.metrics.served(false, 40_000_000);
+		String out = context.metrics.render(context);
+		String hit = "proxy_request_duration_seconds_bucket{cache=\"hit\",le=";
+		Checks.check(out.contains("# TYPE proxy_request_duration_seconds histogram\n"), "latency is a histogram");
+		Checks.check(out.contains(hit + "\"0.0001\"} 0\n") && out.contains(hit + "\"0.00025\"} 3\n")
+				&& out.contains(hit + "\"0.0025\"} 3\n") && out.contains(hit + "\"0.005\"} 4\n")
+				&& out.contains(hit + "\"10\"} 4\n") && out.contains(hit + "\"+Inf\"} 4\n"),
+				"hit buckets are cumulative and end with +Inf");
+		Checks.check(out.contains("proxy_request_duration_seconds_sum{cache=\"hit\"} 0.00360000\n")
+				&& out.contains("proxy_request_duration_seconds_count{cache=\"hit\"} 4\n"), "hit sum and count");
+		Checks.check(out.contains("proxy_request_duration_seconds_bucket{cache=\"miss\",le=\"0.025\"} 0\n")
+				&& out.contains("proxy_request_duration_seconds_bucket{cache=\"miss\",le=\"0.05\"} 1\n")
+				&& out.contains("proxy_request_duration_seconds_count{cache=\"miss\"} 1\n"), "miss buckets");
+		Checks.check(out.contains("proxy_origin_fetch_duration_seconds_bucket{le=\"1\"} 0\n")
+				&& out.contains("proxy_origin_fetch_duration_seconds_sum 0\n")
+				&& out.contains("proxy_origin_fetch_duration_seconds_count 0\n"), "histogram without labels");
+	}
+}
@@ -0,0 +1,163 @@
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps one client or one origin from taking the proxy from everyone else.
+ * Every client address has a token bucket of --client-burst requests that
+ * refills at --client-rate per second (0, the default, means no limit),
+ * a request without a token is answered 429 before it gets a worker.
+ * Buckets that filled up again are dropped by a timer.
+ * With --origin-max-concurrent set, at most that many fetches may be in
+ * flight or waiting for a connection to one origin host, more are answered
+ * 503 right away instead of holding a worker while a slow or dead origin
+ * times out. It is off (0) by default. The NIO engine takes the slot before
+ * the request is scheduled, the blocking engine only reads the request on
+ * the worker and takes it when the fetch starts.
+ */
+class Limits {
+	private final double clientRate;
+	private final double clientBurst;
+	private final int originMaxConcurrent;
+	private final Map<InetAddress, Bucket> clients = new ConcurrentHashMap<>();
+	// host:port -> fetches in flight, a host without any has no entry
+	private final Map<String, Integer> origins = new ConcurrentHashMap<>();
+	private final AtomicLong clientThrottled = new AtomicLong();
+	private final AtomicLong originThrottled = new AtomicLong();
+
+	public Limits(double clientRate, double clientBurst, int originMaxConcurrent) {
+		this.clientRate = clientRate;
+		this.clientBurst = Math.max(1, clientBurst);
+		this.originMaxConcurrent = originMaxConcurrent;
+		if (clientRate > 0) {
+			// a bucket idle for longer than it takes to fill up is the same as a new one
+			long full = Math.max(1000, (long) (this.clientBurst / clientRate * 1000));
+			ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "client-limits");
+				thread.setDaemon(true);
+				return thread;
+			});
+			timer.scheduleWithFixedDelay(() -> sweep(System.nanoTime(), full * 1_000_000), full, full,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public static Limits fromConfig(ProxyConfig config) {
+		int rate = config.getInt("client-rate", 0);
+		return new Limits(rate, config.getInt("client-burst", rate * 2), config.getInt("origin-max-concurrent", 0));
+	}
+
+	private static class Bucket {
+		double tokens;
+		long last;
+
+		Bucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.last = now;
+		}
+	}
+
+	/**
+	 * Takes a token for one request of the client, false if it has none left.
+	 */
+	public boolean admitClient(InetAddress client) {
+		if (clientRate <= 0) {
+			return true;
+		}
+		long now = System.nanoTime();
+		Bucket bucket = clients.computeIfAbsent(client, c -> new Bucket(clientBurst, now));
+		synchronized (bucket) {
+			bucket.tokens = Math.min(clientBurst, bucket.tokens + (now - bucket.last) / 1e9 * clientRate);
+			bucket.last = now;
+			if (bucket.tokens >= 1) {
+				bucket.tokens--;
+				return true;
+			}
+		}
+		clientThrottled.incrementAndGet();
+		return false;
+	}
+
+	// runs on the timer, never on a request
+	void sweep(long now, long idleNanos) {
+		Iterator<Bucket> it = clients.values().iterator();
+		while (it.hasNext()) {
+			Bucket bucket = it.next();
+			synchronized (bucket) {
+				if (now - bucket.last > idleNanos) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * True if --origin-max-concurrent is set.
+	 */
+	public boolean limitsOrigins() {
+		return originMaxConcurrent > 0;
+	}
+
+	/**
+	 * Counts a fetch from the url's host, null if the host already has
+	 * as many as it may. A returned slot must be left when the fetch ends.
+	 */
+	public String enterOrigin(URL url) {
+		String host = url.getHost().toLowerCase(Locale.ROOT) + ":"
+				+ (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+		if (originMaxConcurrent <= 0) {
+			return host;
+		}
+		boolean[] entered = new boolean[1];
+		origins.compute(host, (h, inFlight) -> {
+			int count = inFlight == null ? 0 : inFlight;
+			if (count >= originMaxConcurrent) {
+				return inFlight;
+			}
+			entered[0] = true;
+			return count + 1;
+		});
+		if (!entered[0]) {
+			originThrottled.incrementAndGet();
+			return null;
+		}
+		return host;
+	}
+
+	public void leaveOrigin(String slot) {
+		if (originMaxConcurrent <= 0) {
+			return;
+		}
+		// the last one out removes the host, so hosts we talked to once do not pile up
+		origins.computeIfPresent(slot, (h, inFlight) -> inFlight > 1 ? inFlight - 1 : null);
+	}
+
+	/**
+	 * Number of origin hosts with fetches in flight.
+	 */
+	public int activeOrigins() {
+		return origins.size();
+	}
+
+	/**
+	 * Number of client addresses with a bucket.
+	 */
+	public int trackedClients() {
+		return clients.size();
+	}
+
+	public long clientThrottled() {
+		return clientThrottled.get();
+	}
+
+	public long originThrottled() {
+		return originThrottled.get();
+	}
+}
@@ -0,0 +1,60 @@
+import java.net.InetAddress;
+import java.net.URL;
+
+/**
+ * Checks the per client and per origin limits, and that neither keeps
+ * state for clients and origins that went quiet.
+ *
+ * Run: java LimitsTest, exits with 1 if a check failed.
+ */
+public class LimitsTest {
+	public static void main(String[] args) throws Exception {
+		origins();
+		clients();
+		Checks.exit();
+	}
+
+	private static void origins() throws Exception {
+		Limits off = Limits.fromConfig(ProxyConfig.fromArgs(new String[0]));
+		Checks.check(!off.limitsOrigins(), "origin limit is off by default");
+		URL url = new URL("http://Example.com/a");
+		boolean entered = true;
+		for (int i = 0; i < 1000; i++) {
+			entered &= off.enterOrigin(url) != null;
+		}
+		Checks.check(entered, "no origin limit when off");
+		Checks.check(off.activeOrigins() == 0, "nothing is counted when off");
+
+		Limits limits = new Limits(0, 0, 2);
+		String first = limits.enterOrigin(url);
+		String second = limits.enterOrigin(new URL("http://example.com:80/b"));
+		Checks.check(first != null && second != null, "two fetches from one origin");
+		Checks.check(limits.enterOrigin(new URL("http://example.com/c")) == null, "third is refused");
+		Checks.check(limits.enterOrigin(new URL("http://example.com:8080/c")) != null, "other port is another origin");
+		Checks.check(limits.originThrottled() == 1, "refusal is counted");
+		limits.leaveOrigin(first);
+		String third = limits.enterOrigin(url);
+		Checks.check(third != null, "slot is free again after leave");
+		limits.leaveOrigin(second);
+		limits.leaveOrigin(third);
+		limits.leaveOrigin("example.com:8080");
+		Checks.check(limits.activeOrigins() == 0, "idle origins are not kept");
+	}
+
+	private static void clients() throws Exception {
+		// 10 per second with a burst of 2
+		Limits limits = new Limits(10, 2, 0);
+		InetAddress client = InetAddress.getByName("10.0.0.1");
+		Checks.check(limits.admitClient(client) && limits.admitClient(client), "burst is admitted");
+		Checks.check(!limits.admitClient(client), "over the burst is refused");
+		Checks.check(limits.clientThrottled() == 1, "refusal is counted");
+		for (int i = 0; i < 100; i++) {
+			limits.admitClient(InetAddress.getByName("10.1.0." + i));
+		}
+		Checks.check(limits.trackedClients() == 101, "one bucket per client");
+		// what the timer does once the buckets had time to fill up
+		limits.sweep(System.nanoTime() + 1_000_000_000L, 200_000_000L);
+		Checks.check(limits.trackedClients() == 0, "idle buckets are swept");
+		Checks.check(limits.admitClient(client), "swept client starts with a full bucket");
+	}
+}
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+/**
+ * Closed loop HTTP load generator on a single selector thread, so it can
+ * hold tens of thousands of concurrent clients without a thread each.
+ * Every client sends one GET through the proxy, reads until the proxy
+ * closes the connection and then starts over with a new connection.
+ * A 503 from the proxy is counted as rejected, not as a response, it
+ * says nothing about how fast a request is answered.
+ */
+class LoadGenerator {
+	private final InetSocketAddress proxy;
+	private final Supplier<String> urls;
+
+	public LoadGenerator(InetSocketAddress proxy, Supplier<String> urls) {
+		this.proxy = proxy;
+		this.urls = urls;
+	}
+
+	// one in flight request
+	private static class Client {
+		ByteBuffer request;
+		long start;
+		long bytes;
+		// the start of the status line, "HTTP/1.1 503"
+		final byte[] status = new byte[12];
+	}
+
+	/**
+	 * Keeps concurrency requests in flight for durationMillis.
+	 */
+	public Result run(int concurrency, long durationMillis) throws IOException {
+		Result result = new Result();
+		ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+		long end = System.currentTimeMillis() + durationMillis;
+		try (Selector selector = Selector.open()) {
+			for (int i = 0; i < concurrency; i++) {
+				start(selector, result);
+			}
+			long began = System.nanoTime();
+			while (System.currentTimeMillis() < end) {
+				selector.select(100);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					SocketChannel channel = (SocketChannel) key.channel();
+					Client client = (Client) key.attachment();
+					try {
+						if (key.isConnectable()) {
+							channel.finishConnect();
+							key.interestOps(SelectionKey.OP_WRITE);
+						} else if (key.isWritable()) {
+							channel.write(client.request);
+							if (!client.request.hasRemaining()) {
+								key.interestOps(SelectionKey.OP_READ);
+							}
+						} else if (key.isReadable()) {
+							readBuffer.clear();
+							int read = channel.read(readBuffer);
+							if (read == -1) {
+								finish(key, client, result, client.bytes > 0);
+								start(selector, result);
+							} else {
+								if (client.bytes < client.status.length) {
+									readBuffer.flip();
+									int length = (int) Math.min(read, client.status.length - client.bytes);
+									readBuffer.get(client.status, (int) client.bytes, length);
+								}
+								client.bytes += read;
+							}
+						}
+					} catch (IOException e) {
+						finish(key, client, result, false);
+						start(selector, result);
+					}
+				}
+			}
+			result.elapsedNanos = System.nanoTime() - began;
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+		}
+		return result;
+	}
+
+	private void start(Selector selector, Result result) throws IOException {
+		Client client = new Client();
+		String request = "GET " + urls.get() + " HTTP/1.1\r\nHost: " + proxy.getHostString()
+				+ "\r\nConnection: close\r\n\r\n";
+		client.request = ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1));
+		client.start = System.nanoTime();
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		try {
+			if (channel.connect(proxy)) {
+				channel.register(selector, SelectionKey.OP_WRITE, client);
+			} else {
+				channel.register(selector, SelectionKey.OP_CONNECT, client);
+			}
+		} catch (IOException e) {
+			result.errors++;
+			channel.close();
+		}
+	}
+
+	private void finish(SelectionKey key, Client client, Result result, boolean ok) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// already closed
+		}
+		if (ok && isRejected(client.status)) {
+			result.rejected++;
+		} else if (ok) {
+			result.record(System.nanoTime() - client.start, client.bytes);
+		} else {
+			result.errors++;
+		}
+	}
+
+	private static boolean isRejected(byte[] status) {
+		return new String(status, StandardCharsets.ISO_8859_1).startsWith(" 503", 8);
+	}
+
+	/**
+	 * Counts and latencies of one run, rejected requests are only counted.
+	 */
+	static class Result {
+		long[] latencies = new long[1024];
+		int count;
+		long errors;
+		long rejected;
+		long bytes;
+		long elapsedNanos;
+		private boolean sorted;
+
+		void record(long latencyNanos, long responseBytes) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = latencyNanos;
+			bytes += responseBytes;
+			sorted = false;
+		}
+
+		public double throughput() {
+			return count / (elapsedNanos / 1e9);
+		}
+
+		/**
+		 * Latency at the given percentile (0-100) in milliseconds.
+		 */
+		public double percentile(double p) {
+			if (count == 0) {
+				return 0;
+			}
+			if (!sorted) {
+				Arrays.sort(latencies, 0, count);
+				sorted = true;
+			}
+			int index = (int) Math.min(count - 1, Math.ceil(p / 100 * count) - 1);
+			return latencies[Math.max(0, index)] / 1e6;
+		}
+	}
+}
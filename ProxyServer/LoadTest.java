@@ -0,0 +1,74 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the platform and virtual thread executors of the proxy.
+ * For every mode a proxy is started in its own JVM, then each concurrency
+ * level is run against it for --duration seconds and throughput and p99
+ * latency are printed.
+ *
+ * Run: java LoadTest --modes=platform,virtual --levels=1000,10000,50000
+ * Other options: --duration=10 --objects=100 --size=4096 --origin-delay=20
+ * --cacheable=false --proxy-port=9180 --origin-port=9181 --engine=blocking
+ * Both modes get the same --queue-size (0, no limit) and --overload (reject),
+ * so the platform pool is not measured by how fast it answers 503.
+ * Those are counted in the rejected column and left out of the latencies.
+ * 50k clients need a matching open files limit (ulimit -n) for both JVMs.
+ * The virtual mode needs JDK 21 or later, on older JDKs the test stops.
+ */
+public class LoadTest {
+	public static void main(String[] args) throws Exception {
+		ProxyConfig config = ProxyConfig.fromArgs(args);
+		String[] modes = config.get("modes", "platform,virtual").split(",");
+		String[] levels = config.get("levels", "1000,10000,50000").split(",");
+		long duration = config.getInt("duration", 10) * 1000L;
+		int objects = config.getInt("objects", 100);
+		int size = config.getInt("size", 4096);
+		int proxyPort = config.getInt("proxy-port", 9180);
+		int originPort = config.getInt("origin-port", 9181);
+		for (String mode : modes) {
+			// the proxy would fall back to platform threads and we would print their numbers as virtual
+			if (mode.trim().equalsIgnoreCase("virtual") && Runtime.version().feature() < 21) {
+				throw new IllegalStateException("Virtual threads need JDK 21 or later, this is JDK "
+						+ Runtime.version().feature() + ", run with --modes=platform");
+			}
+		}
+
+		// by default every request is a miss, that is where threads block on the origin
+		OriginStub origin = new OriginStub(originPort, config.getInt("origin-delay", 20),
+				config.getBoolean("cacheable", false));
+		origin.start();
+		AtomicLong sequence = new AtomicLong();
+		LoadGenerator generator = new LoadGenerator(new InetSocketAddress("127.0.0.1", proxyPort),
+				() -> "http://127.0.0.1:" + originPort + "/obj/" + (sequence.getAndIncrement() % objects) + "?size=" + size);
+
+		List<String> proxyArgs = List.of("--engine=" + config.get("engine", "blocking"),
+				"--queue-size=" + config.getInt("queue-size", 0), "--overload=" + config.get("overload", "reject"));
+
+		System.out.printf("%-10s %8s %12s %10s %10s %10s %10s%n", "executor", "clients", "req/s", "p50 ms", "p99 ms",
+				"rejected", "errors");
+		try {
+			for (String mode : modes) {
+				List<String> modeArgs = new ArrayList<>(proxyArgs);
+				modeArgs.add("--executor=" + mode.trim());
+				Process proxy = ProxyProcess.start(proxyPort, List.of(), modeArgs);
+				try {
+					for (String level : levels) {
+						LoadGenerator.Result result = generator.run(Integer.parseInt(level.trim()), duration);
+						System.out.printf("%-10s %8s %12.0f %10.2f %10.2f %10d %10d%n", mode.trim(), level.trim(),
+								result.throughput(), result.percentile(50), result.percentile(99), result.rejected,
+								result.errors);
+					}
+				} finally {
+					proxy.destroy();
+					proxy.waitFor(10, TimeUnit.SECONDS);
+				}
+			}
+		} finally {
+			origin.stop();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Plain least recently used eviction.
+ */
+class LruPolicy<K> implements EvictionPolicy<K> {
+	// access ordered, the eldest key is the least recently used
+	private final LinkedHashMap<K, Long> order = new LinkedHashMap<>(16, 0.75f, true);
+
+	@Override
+	public void onAccess(K key, boolean hit) {
+		if (hit) {
+			order.get(key);
+		}
+	}
+
+	@Override
+	public void onAdd(K key, long weight) {
+		order.put(key, weight);
+	}
+
+	@Override
+	public void onRemove(K key) {
+		order.remove(key);
+	}
+
+	@Override
+	public K evict() {
+		Iterator<K> it = order.keySet().iterator();
+		if (!it.hasNext()) {
+			return null;
+		}
+		K eldest = it.next();
+		it.remove();
+		return eldest;
+	}
+}
@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file of records through a mapped window of 64 MiB that moves
+ * along with the reads, so positions are longs and the file can be bigger
+ * than one MappedByteBuffer. A record is never split, a bigger one gets a
+ * window of its own. Used by the snapshot and the disk cache rebuild.
+ */
+class MappedReader {
+	private static final long WINDOW = 64L * 1024 * 1024;
+
+	private final FileChannel channel;
+	private MappedByteBuffer map;
+	private long mapStart;
+
+	MappedReader(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * The length bytes from position on, the buffer positioned at the start.
+	 * They have to be in the file.
+	 */
+	ByteBuffer at(long position, int length) throws IOException {
+		if (map == null || position < mapStart || position + length > mapStart + map.capacity()) {
+			long size = Math.min(channel.size() - position, Math.max(length, WINDOW));
+			map = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			mapStart = position;
+		}
+		ByteBuffer view = map.duplicate();
+		view.position((int) (position - mapStart));
+		view.limit(view.position() + length);
+		return view.slice();
+	}
+}
@@ -0,0 +1,390 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Non blocking front end for the proxy.
+ * A few event loop threads own all client connections while they are idle
+ * or slowly sending their request, so those cost a buffer and not a thread.
+ * Once a request header is complete the connection goes to the worker pool,
+ * which answers it with the same Request code the blocking engine uses.
+ * Keep-alive connections come back to their loop after the response.
+ */
+class NioEngine {
+	// same as the SO_TIMEOUT of the blocking engine
+	private static final long IDLE_TIMEOUT = 10000;
+	// nobody sends a header this big, it is an attack or garbage
+	private static final int MAX_HEADER = 64 * 1024;
+
+	private final ProxyContext context;
+	private final ExecutorService workers;
+	private final EventLoop[] loops;
+	private int next;
+
+	public NioEngine(ProxyContext context, ExecutorService workers, int loopCount) {
+		this.context = context;
+		this.workers = workers;
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+	}
+
+	/**
+	 * Accepts clients on the calling thread forever and hands them to the loops
+	 * round robin.
+	 */
+	public void serve(int port) throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+			Thread thread = new Thread(loops[i], "nio-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.socket().setReuseAddress(true);
+			server.bind(new InetSocketAddress(port));
+			while (true) {
+				SocketChannel client = server.accept();
+				context.metrics.connectionOpened();
+				client.configureBlocking(false);
+				loops[next++ % loops.length].register(client);
+			}
+		}
+	}
+
+	// what the loop keeps for a connection until its header is complete
+	private static class Connection {
+		final SocketChannel channel;
+		final EventLoop loop;
+		// bytes read but not answered yet, pipelined requests stay in here
+		ByteBuffer buffer;
+		long lastActive = System.currentTimeMillis();
+		// when the loop saw the whole header, the wait for a worker counts too
+		long startTime;
+		// origin slot taken for the first request before it was scheduled, see Limits
+		String originSlot;
+
+		Connection(SocketChannel channel, EventLoop loop, ByteBuffer buffer) {
+			this.channel = channel;
+			this.loop = loop;
+			this.buffer = buffer;
+		}
+	}
+
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<>();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(SocketChannel client) {
+			register(new Connection(client, this, ByteBuffer.allocate(2048)));
+		}
+
+		// also used by the workers to give back a keep-alive connection
+		void register(Connection connection) {
+			connection.lastActive = System.currentTimeMillis();
+			pending.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			long lastSweep = System.currentTimeMillis();
+			List<SelectionKey> ready = new ArrayList<>();
+			while (true) {
+				try {
+					selector.select(1000);
+					Connection connection;
+					while ((connection = pending.poll()) != null) {
+						try {
+							connection.channel.register(selector, SelectionKey.OP_READ, connection);
+						} catch (IOException e) {
+							closeClient(connection.channel);
+						}
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (key.isValid() && key.isReadable() && read(key)) {
+							ready.add(key);
+						}
+					}
+					if (!ready.isEmpty()) {
+						dispatch(ready);
+						ready.clear();
+					}
+					long now = System.currentTimeMillis();
+					if (now - lastSweep >= 1000) {
+						closeIdle(now);
+						lastSweep = now;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		// returns true once the whole request header is in the buffer
+		private boolean read(SelectionKey key) {
+			SocketChannel channel = (SocketChannel) key.channel();
+			Connection connection = (Connection) key.attachment();
+			try {
+				if (!connection.buffer.hasRemaining()) {
+					if (connection.buffer.capacity() >= MAX_HEADER) {
+						close(key);
+						return false;
+					}
+					ByteBuffer bigger = ByteBuffer.allocate(connection.buffer.capacity() * 2);
+					connection.buffer.flip();
+					bigger.put(connection.buffer);
+					connection.buffer = bigger;
+				}
+				int read = channel.read(connection.buffer);
+				if (read == -1) {
+					close(key);
+					return false;
+				}
+				connection.lastActive = System.currentTimeMillis();
+				if (headerEnd(connection.buffer) < 0) {
+					return false;
+				}
+				// the request is here, from now on the time is ours and not the client's
+				connection.startTime = System.nanoTime();
+				return true;
+			} catch (IOException e) {
+				close(key);
+				return false;
+			}
+		}
+
+		// moves complete requests to the workers, in blocking mode
+		private void dispatch(List<SelectionKey> ready) throws IOException {
+			for (SelectionKey key : ready) {
+				key.cancel();
+			}
+			// the cancelled keys are only dropped on the next select
+			selector.selectNow();
+			for (SelectionKey key : ready) {
+				Connection connection = (Connection) key.attachment();
+				try {
+					connection.channel.configureBlocking(true);
+				} catch (IOException e) {
+					closeClient(connection.channel);
+					continue;
+				}
+				// a client over its --client-rate never gets a worker
+				if (!context.limits.admitClient(connection.channel.socket().getInetAddress())) {
+					refuse(connection.channel, "HTTP/1.1 429 Too Many Requests");
+					continue;
+				}
+				// neither does a fetch from an origin at its --origin-max-concurrent
+				if (!reserveOrigin(connection)) {
+					refuse(connection.channel, "HTTP/1.1 503 Service Unavailable");
+					continue;
+				}
+				workers.execute(new Answer(connection));
+			}
+		}
+
+		// false if the request needs the origin and the origin has no slot left
+		// anything we have a copy of goes to a worker without a slot, fresh or to serve it
+		// stale on error, and so does a miss that can wait for a fetch already running
+		// if they do need the origin after all the fetch takes its slot then
+		private boolean reserveOrigin(Connection connection) {
+			if (!context.limits.limitsOrigins()) {
+				return true;
+			}
+			List<String> lines = lines(connection.buffer);
+			String[] requestLine = lines.isEmpty() ? new String[0] : lines.get(0).trim().split(" ");
+			if (requestLine.length < 2 || !requestLine[0].equalsIgnoreCase("GET") || !requestLine[1].startsWith("http")) {
+				return true;
+			}
+			CacheKey key = context.keys.build(requestLine[0], requestLine[1], lines);
+			if (context.cache.peek(key) != null || context.flights.running(key)) {
+				return true;
+			}
+			try {
+				connection.originSlot = context.limits.enterOrigin(new URL(requestLine[1]));
+			} catch (MalformedURLException e) {
+				return true;
+			}
+			return connection.originSlot != null;
+		}
+
+		private void closeIdle(long now) {
+			for (SelectionKey key : selector.keys()) {
+				Connection connection = (Connection) key.attachment();
+				if (connection != null && now - connection.lastActive > IDLE_TIMEOUT) {
+					close(key);
+				}
+			}
+		}
+
+		private void close(SelectionKey key) {
+			key.cancel();
+			closeClient((SocketChannel) key.channel());
+		}
+	}
+
+	// a connection with a complete request, waiting for a worker
+	private class Answer implements Workers.Task {
+		private final Connection connection;
+
+		Answer(Connection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void run() {
+			answer(connection);
+		}
+
+		@Override
+		public Object client() {
+			return connection.channel.socket().getInetAddress();
+		}
+
+		@Override
+		public void reject() {
+			context.metrics.rejected();
+			releaseOrigin(connection);
+			refuse(connection.channel, "HTTP/1.1 503 Service Unavailable");
+		}
+	}
+
+	// runs on a worker, answers every complete request in the buffer
+	// and then gives a keep-alive connection back to its loop
+	private void answer(Connection connection) {
+		SocketChannel channel = connection.channel;
+		boolean keepAlive = false;
+		boolean handedOff = false;
+		boolean first = true;
+		try {
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), Relay.BUFFER_SIZE);
+			do {
+				List<String> requestComponents = take(connection.buffer);
+				if (!first) {
+					// a pipelined request waited in the buffer while we answered the one before
+					connection.startTime = System.nanoTime();
+				}
+				Request request = new Request(channel.socket(), context, connection.startTime);
+				if (first) {
+					// its token and origin slot were taken before it was scheduled
+					request.admitted();
+					request.reservedOrigin(connection.originSlot);
+					connection.originSlot = null;
+					first = false;
+				}
+				try {
+					keepAlive = request.handle(requestComponents, out);
+				} finally {
+					request.releaseOrigin();
+				}
+				handedOff = request.handedOff();
+			} while (keepAlive && headerEnd(connection.buffer) >= 0);
+			if (keepAlive) {
+				channel.configureBlocking(false);
+				connection.loop.register(connection);
+			}
+		} catch (Exception e) {
+			// same as the blocking engine, the client just gets cut off
+			keepAlive = false;
+		} finally {
+			releaseOrigin(connection);
+			if (!keepAlive && !handedOff) {
+				closeClient(channel);
+			}
+		}
+	}
+
+	private void releaseOrigin(Connection connection) {
+		if (connection.originSlot != null) {
+			context.limits.leaveOrigin(connection.originSlot);
+			connection.originSlot = null;
+		}
+	}
+
+	// the channel is already in blocking mode, the short answer fits in the socket buffer
+	private void refuse(SocketChannel channel, String statusLine) {
+		try {
+			channel.write(ByteBuffer.wrap(HttpHead.build(statusLine, null, 0, false)));
+		} catch (IOException e) {
+			// it is gone anyway
+		}
+		closeClient(channel);
+	}
+
+	// every client channel is closed here once, so the metrics see it go
+	private void closeClient(SocketChannel channel) {
+		context.metrics.connectionClosed();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+
+	/**
+	 * The lines of the complete header at the start of the buffer,
+	 * the buffer is left as it is.
+	 */
+	static List<String> lines(ByteBuffer buffer) {
+		String header = new String(buffer.array(), 0, headerEnd(buffer), StandardCharsets.ISO_8859_1);
+		List<String> lines = new ArrayList<>();
+		for (String line : header.split("\r?\n")) {
+			if (line.isEmpty()) {
+				break;
+			}
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	/**
+	 * Position right after the empty line ending the header, or -1.
+	 */
+	static int headerEnd(ByteBuffer buffer) {
+		byte[] data = buffer.array();
+		int limit = buffer.position();
+		for (int i = 3; i < limit; i++) {
+			if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+				return i + 1;
+			}
+			// some clients only send bare new lines
+			if (data[i] == '\n' && data[i - 1] == '\n') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Splits the first header in the buffer into lines, the same lines the
+	 * blocking engine reads, and drops it from the buffer.
+	 */
+	static List<String> take(ByteBuffer buffer) {
+		int end = headerEnd(buffer);
+		List<String> lines = lines(buffer);
+		// whatever came after it belongs to the next request
+		System.arraycopy(buffer.array(), end, buffer.array(), 0, buffer.position() - end);
+		buffer.position(buffer.position() - end);
+		return lines;
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * Keeps connections to the origin servers alive between fetches.
+ * The sockets live in the JDK's HttpURLConnection keep-alive cache, which
+ * takes a connection back once its response was read to the end and
+ * closed (not disconnected) and hands it to the next fetch to the same
+ * host. We only configure that cache: --origin-idle-per-host idle
+ * connections per host (20) and --origin-idle-timeout seconds an idle one
+ * is kept (5) when the origin's Keep-Alive header does not say otherwise.
+ * The JDK looks for expired ones every 5s, so they can live a bit longer.
+ * The JDK does not tell us when it reused a connection, so reuse is not
+ * counted here.
+ * How many fetches may run against one origin at once is up to Limits
+ * (--origin-max-concurrent), not to this cache.
+ */
+class OriginPool {
+	private final int idlePerHost;
+	private final int idleTimeout;
+
+	/**
+	 * Has to be made before the first fetch, the JDK reads the settings once.
+	 */
+	public OriginPool(int idlePerHost, int idleTimeout) {
+		this.idlePerHost = idlePerHost;
+		this.idleTimeout = idleTimeout;
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(idlePerHost));
+		System.setProperty("http.keepAlive.time.server", Integer.toString(idleTimeout));
+	}
+
+	public static OriginPool fromConfig(ProxyConfig config) {
+		// --origin-max-per-host is the old name of the option
+		return new OriginPool(config.getInt("origin-idle-per-host", config.getInt("origin-max-per-host", 20)),
+				Math.max(1, config.getInt("origin-idle-timeout", 5)));
+	}
+
+	public int idlePerHost() {
+		return idlePerHost;
+	}
+
+	/**
+	 * Seconds an idle connection is kept.
+	 */
+	public int idleTimeout() {
+		return idleTimeout;
+	}
+}
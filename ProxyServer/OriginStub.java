@@ -0,0 +1,80 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the web servers the proxy talks to, used by the
+ * load tests so they do not depend on the internet.
+ * GET /obj/{n}?size={bytes} returns that many bytes after the configured delay.
+ * &store=no makes that one response uncacheable whatever the stub was made with.
+ */
+class OriginStub {
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * delayMillis simulates the round trip to a real server,
+	 * cacheable decides if the responses carry max-age or no-store.
+	 */
+	public OriginStub(int port, long delayMillis, boolean cacheable) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/obj/", exchange -> {
+			requests.incrementAndGet();
+			int size = 4096;
+			boolean store = cacheable;
+			String query = exchange.getRequestURI().getQuery();
+			if (query != null) {
+				for (String param : query.split("&")) {
+					if (param.startsWith("size=")) {
+						size = Integer.parseInt(param.substring(5));
+					} else if (param.equals("store=no")) {
+						store = false;
+					}
+				}
+			}
+			if (delayMillis > 0) {
+				try {
+					Thread.sleep(delayMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			byte[] body = new byte[size];
+			Arrays.fill(body, (byte) 'x');
+			exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+			exchange.getResponseHeaders().add("Cache-Control", store ? "max-age=3600" : "no-store");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Requests that reached the origin, so misses of the proxy.
+	 */
+	public long requests() {
+		return requests.get();
+	}
+}
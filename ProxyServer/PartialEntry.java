@@ -0,0 +1,139 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A sparse copy of a response we only got in ranges (206 Partial Content).
+ * Every range the origin sent is kept as a segment at its offset, a range
+ * request that falls inside the segments is answered without the origin.
+ * Like CacheEntry it is immutable, a new segment makes a new entry, so the
+ * cache can charge its weight correctly. No segment contains another,
+ * that keeps them sorted by their end too.
+ * Once the segments cover the whole body it becomes a normal CacheEntry.
+ */
+class PartialEntry extends CacheEntry {
+	private static final CachedBody EMPTY = CachedBody.of(new byte[0]);
+
+	private final long totalLength;
+	// offset -> bytes from there
+	private final NavigableMap<Long, CachedBody> segments;
+	private final long segmentBytes;
+
+	private PartialEntry(String url, long totalLength, NavigableMap<Long, CachedBody> segments, byte[] head,
+			String contentEncoding, long fetchTime, long storedAt, Freshness freshness) {
+		super(url, EMPTY, head, contentEncoding, fetchTime, storedAt, freshness);
+		this.totalLength = totalLength;
+		this.segments = Collections.unmodifiableNavigableMap(segments);
+		long bytes = 0;
+		for (CachedBody segment : segments.values()) {
+			bytes += segment.length();
+		}
+		this.segmentBytes = bytes;
+	}
+
+	/**
+	 * A new sparse copy with one segment. head is kept with a 200 status line,
+	 * ranges are answered by swapping it, see HttpHead.partial.
+	 */
+	public static PartialEntry of(String url, long totalLength, long first, CachedBody segment, byte[] head,
+			String contentEncoding, long fetchTime, long storedAt, Freshness freshness) {
+		TreeMap<Long, CachedBody> segments = new TreeMap<>();
+		segments.put(first, segment);
+		return new PartialEntry(url, totalLength, segments, head, contentEncoding, fetchTime, storedAt, freshness);
+	}
+
+	public long totalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * True if a range of the given response belongs to the same body:
+	 * same length and encoding and the same strong validator.
+	 * Without any validator we can only go by the length.
+	 */
+	public boolean sameBody(long totalLength, String contentEncoding, Freshness freshness) {
+		if (this.totalLength != totalLength
+				|| !(contentEncoding == null ? contentEncoding() == null : contentEncoding.equals(contentEncoding()))) {
+			return false;
+		}
+		if (etag() != null || freshness.etag() != null) {
+			return etag() != null && etag().equals(freshness.etag()) && !etag().startsWith("W/");
+		}
+		if (lastModified() != null || freshness.lastModified() != null) {
+			return lastModified() != null && lastModified().equals(freshness.lastModified());
+		}
+		return true;
+	}
+
+	/**
+	 * This copy with one more segment, and the head and freshness of the
+	 * response that brought it. Segments it covers are dropped.
+	 */
+	public PartialEntry with(long first, CachedBody segment, byte[] head, long storedAt, Freshness freshness) {
+		long last = first + segment.length() - 1;
+		TreeMap<Long, CachedBody> merged = new TreeMap<>(segments);
+		Map.Entry<Long, CachedBody> before = merged.floorEntry(first);
+		if (before != null && before.getKey() + before.getValue().length() - 1 >= last) {
+			// we already had all of it
+			return new PartialEntry(url(), totalLength, merged, head, contentEncoding(), fetchTime(), storedAt, freshness);
+		}
+		merged.subMap(first, true, last, true).entrySet()
+		.removeIf(e -> e.getKey() + e.getValue().length() - 1 <= last);
+		merged.put(first, segment);
+		return new PartialEntry(url(), totalLength, merged, head, contentEncoding(), fetchTime(), storedAt, freshness);
+	}
+
+	/**
+	 * The bytes of the resolved range as read-only buffers over the
+	 * segments, null if a part of it is missing.
+	 */
+	public ByteBuffer[] buffers(ByteRange range) {
+		List<ByteBuffer> buffers = new ArrayList<>();
+		long position = range.first;
+		while (position <= range.last) {
+			Map.Entry<Long, CachedBody> segment = segments.floorEntry(position);
+			if (segment == null) {
+				return null;
+			}
+			long end = segment.getKey() + segment.getValue().length() - 1;
+			if (end < position) {
+				return null;
+			}
+			long to = Math.min(end, range.last);
+			Collections.addAll(buffers,
+					segment.getValue().buffers(position - segment.getKey(), to - segment.getKey()));
+			position = to + 1;
+		}
+		return buffers.toArray(new ByteBuffer[0]);
+	}
+
+	/**
+	 * The whole body if the segments cover all of it, copied into one
+	 * CachedBody, otherwise null.
+	 */
+	public CachedBody complete() {
+		if (totalLength > Integer.MAX_VALUE) {
+			return null;
+		}
+		ByteBuffer[] all = buffers(new ByteRange(0, totalLength - 1));
+		if (all == null) {
+			return null;
+		}
+		CachedBody.Builder builder = new CachedBody.Builder();
+		for (ByteBuffer buffer : all) {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			builder.write(bytes, 0, bytes.length);
+		}
+		return builder.build();
+	}
+
+	@Override
+	public long weight() {
+		return super.weight() + segmentBytes;
+	}
+}
@@ -0,0 +1,100 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Checks the sparse copy of a body known in ranges: adjacent and
+ * overlapping segments give the right bytes, a gap is never papered
+ * over, and a segment that adds nothing does not add weight.
+ * Byte i of the body is (byte) (i * 7), so every slice can be checked.
+ *
+ * Run: java PartialEntryTest, exits with 1 if a check failed.
+ */
+public class PartialEntryTest {
+	private static final int TOTAL = 300;
+	private static final byte[] HEAD = "HTTP/1.1 200 OK\r\nETag: \"p\"\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	public static void main(String[] args) {
+		gaps();
+		adjacent();
+		overlapping();
+		contained();
+		Checks.exit();
+	}
+
+	private static void gaps() {
+		PartialEntry entry = entry(0, 99).with(200, slice(200, 299), HEAD, 0, freshness());
+		Checks.check(Arrays.equals(bytes(entry.buffers(new ByteRange(10, 89))), body(10, 89)), "range inside one segment");
+		Checks.check(Arrays.equals(bytes(entry.buffers(new ByteRange(250, 299))), body(250, 299)),
+				"range inside the second segment");
+		Checks.check(entry.buffers(new ByteRange(50, 250)) == null, "range over the gap is missing");
+		Checks.check(entry.buffers(new ByteRange(100, 100)) == null, "first byte of the gap is missing");
+		Checks.check(entry.complete() == null, "not complete with a gap");
+	}
+
+	private static void adjacent() {
+		PartialEntry entry = entry(0, 99).with(200, slice(200, 299), HEAD, 0, freshness())
+				.with(100, slice(100, 199), HEAD, 0, freshness());
+		Checks.check(Arrays.equals(bytes(entry.buffers(new ByteRange(50, 250))), body(50, 250)),
+				"range over three adjacent segments");
+		Checks.check(Arrays.equals(bytes(entry.buffers(new ByteRange(99, 100))), body(99, 100)),
+				"range over the seam of two segments");
+		Checks.check(entry.complete() != null && Arrays.equals(bytes(entry.complete().buffers()), body(0, TOTAL - 1)),
+				"adjacent segments complete the body");
+	}
+
+	private static void overlapping() {
+		// 0-99 and 150-249, then 50-199 overlaps both
+		PartialEntry entry = entry(0, 99).with(150, slice(150, 249), HEAD, 0, freshness())
+				.with(50, slice(50, 199), HEAD, 0, freshness());
+		Checks.check(Arrays.equals(bytes(entry.buffers(new ByteRange(0, 249))), body(0, 249)),
+				"overlapping segments read as one body");
+		Checks.check(entry.buffers(new ByteRange(0, 250)) == null, "past the last segment is missing");
+		// 0-299 covers all of them
+		PartialEntry whole = entry.with(0, slice(0, TOTAL - 1), HEAD, 0, freshness());
+		Checks.check(whole.weight() == entry(0, TOTAL - 1).weight(), "a covering segment replaces the ones it covers");
+		Checks.check(Arrays.equals(bytes(whole.complete().buffers()), body(0, TOTAL - 1)), "and completes the body");
+	}
+
+	private static void contained() {
+		PartialEntry entry = entry(0, 199);
+		PartialEntry same = entry.with(10, slice(10, 20), HEAD, 0, freshness());
+		Checks.check(same.weight() == entry.weight(), "a segment we already have adds no weight");
+		Checks.check(Arrays.equals(bytes(same.buffers(new ByteRange(0, 199))), body(0, 199)), "and changes no bytes");
+	}
+
+	private static PartialEntry entry(int first, int last) {
+		return PartialEntry.of("http://example.com/p", TOTAL, first, slice(first, last), HEAD, null, 10, 0, freshness());
+	}
+
+	private static Freshness freshness() {
+		return new Freshness(true, System.currentTimeMillis() + 60_000, "\"p\"", null);
+	}
+
+	private static CachedBody slice(int first, int last) {
+		return CachedBody.of(body(first, last));
+	}
+
+	private static byte[] body(int first, int last) {
+		byte[] bytes = new byte[last - first + 1];
+		for (int i = first; i <= last; i++) {
+			bytes[i - first] = (byte) (i * 7);
+		}
+		return bytes;
+	}
+
+	// null stays null, a missing range
+	private static byte[] bytes(ByteBuffer[] buffers) {
+		if (buffers == null) {
+			return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (ByteBuffer buffer : buffers) {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.duplicate().get(bytes);
+			out.write(bytes, 0, bytes.length);
+		}
+		return out.toByteArray();
+	}
+}
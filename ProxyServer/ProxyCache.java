@@ -0,0 +1,239 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * In memory response cache with a byte budget.
+ * The keys are split over shards by hash, every shard has its own map,
+ * its own eviction policy and lock and an equal part of the budget,
+ * so threads working on different keys rarely wait for each other.
+ * A lookup is one probe in one shard's map and never waits for the lock,
+ * it is only recorded in a ReadBuffer the policy drains later. Counters are LongAdders,
+ * hits on a hot key do not fight over one shared cache line.
+ * Body, timing, validators and hit count are in one CacheEntry so they
+ * always leave the cache together.
+ */
+class ProxyCache<K> {
+	private final Shard<K>[] shards;
+	private final int mask;
+	private final long maxBytes;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+
+	/**
+	 * shardCount is rounded up to a power of two, policies makes the
+	 * eviction policy of one shard for its part of the budget.
+	 */
+	@SuppressWarnings("unchecked")
+	public ProxyCache(long maxBytes, int shardCount, LongFunction<EvictionPolicy<K>> policies) {
+		int count = Integer.highestOneBit(Math.max(1, shardCount) * 2 - 1);
+		this.maxBytes = maxBytes;
+		this.mask = count - 1;
+		this.shards = (Shard<K>[]) new Shard<?>[count];
+		for (int i = 0; i < count; i++) {
+			shards[i] = new Shard<>(maxBytes / count, policies.apply(maxBytes / count));
+		}
+	}
+
+	// one part of the cache, the lock guards the policy and the writes of usedBytes
+	// lookups do not take it, they go into the read buffers, usedBytes is read without it
+	private static class Shard<K> {
+		final ConcurrentHashMap<K, CacheEntry> entries = new ConcurrentHashMap<>();
+		final ReentrantLock lock = new ReentrantLock();
+		final ReadBuffer<K> hits = new ReadBuffer<>();
+		final ReadBuffer<K> misses = new ReadBuffer<>();
+		final EvictionPolicy<K> policy;
+		final Consumer<K> onHit;
+		final Consumer<K> onMiss;
+		final long maxBytes;
+		volatile long usedBytes;
+
+		Shard(long maxBytes, EvictionPolicy<K> policy) {
+			this.maxBytes = maxBytes;
+			this.policy = policy;
+			this.onHit = key -> policy.onAccess(key, true);
+			this.onMiss = key -> policy.onAccess(key, false);
+		}
+
+		// tells the policy about the buffered lookups, under the lock
+		void drainReads() {
+			hits.drain(onHit);
+			misses.drain(onMiss);
+		}
+	}
+
+	private Shard<K> shard(K key) {
+		int h = key.hashCode();
+		return shards[(h ^ (h >>> 16)) & mask];
+	}
+
+	/**
+	 * Returns the entry or null, and counts the hit or miss.
+	 */
+	public CacheEntry get(K key) {
+		Shard<K> shard = shard(key);
+		CacheEntry entry = shard.entries.get(key);
+		if (entry == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+			entry.hit();
+		}
+		// never waits for the lock, a busy shard drains on its next write
+		ReadBuffer<K> reads = entry == null ? shard.misses : shard.hits;
+		if (reads.offer(key) && shard.lock.tryLock()) {
+			try {
+				shard.drainReads();
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the entry or null without counting it as a hit or miss,
+	 * for looking at what we have before replacing it.
+	 */
+	public CacheEntry peek(K key) {
+		return shard(key).entries.get(key);
+	}
+
+	/**
+	 * Stores the entry and evicts until the shard is back under its budget.
+	 * Returns false if the entry was not kept.
+	 */
+	public boolean put(K key, CacheEntry entry) {
+		Shard<K> shard = shard(key);
+		long weight = entry.weight();
+		if (weight > shard.maxBytes) {
+			rejections.increment();
+			return false;
+		}
+		shard.lock.lock();
+		try {
+			// the policy judges the new entry with the lookups it has not seen yet
+			shard.drainReads();
+			CacheEntry old = shard.entries.put(key, entry);
+			if (old != null) {
+				shard.usedBytes -= old.weight();
+				shard.policy.onRemove(key);
+			}
+			shard.usedBytes += weight;
+			shard.policy.onAdd(key, weight);
+			boolean kept = true;
+			while (shard.usedBytes > shard.maxBytes) {
+				K victim = shard.policy.evict();
+				if (victim == null) {
+					break;
+				}
+				CacheEntry removed = shard.entries.remove(victim);
+				if (removed != null) {
+					shard.usedBytes -= removed.weight();
+				}
+				if (victim.equals(key)) {
+					// the policy did not think the new entry is worth it
+					kept = false;
+					rejections.increment();
+				} else {
+					evictions.increment();
+				}
+			}
+			return kept;
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	/**
+	 * Calls action for every entry, shard by shard. Entries added or
+	 * evicted meanwhile may or may not be seen, nothing is locked.
+	 */
+	public void forEach(BiConsumer<K, CacheEntry> action) {
+		for (Shard<K> shard : shards) {
+			shard.entries.forEach(action);
+		}
+	}
+
+	public void remove(K key) {
+		Shard<K> shard = shard(key);
+		shard.lock.lock();
+		try {
+			CacheEntry old = shard.entries.remove(key);
+			if (old != null) {
+				shard.usedBytes -= old.weight();
+				shard.policy.onRemove(key);
+			}
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Shard<K> shard : shards) {
+			size += shard.entries.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Bytes held, the shards are read one after the other without their locks.
+	 */
+	public long usedBytes() {
+		long used = 0;
+		for (Shard<K> shard : shards) {
+			used += shard.usedBytes;
+		}
+		return used;
+	}
+
+	public long maxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * The budget of one shard, nothing bigger can be cached.
+	 */
+	public long shardBytes() {
+		return shards[0].maxBytes;
+	}
+
+	public int shards() {
+		return shards.length;
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	public long rejections() {
+		return rejections.sum();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Cache Entries: ").append(size())
+		.append(", Bytes: ").append(usedBytes()).append("/").append(maxBytes)
+		.append(", Hits: ").append(hits())
+		.append(", Misses: ").append(misses())
+		.append(", Evictions: ").append(evictions())
+		.append(", Rejected: ").append(rejections());
+		return builder.toString();
+	}
+}
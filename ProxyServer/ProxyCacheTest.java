@@ -0,0 +1,91 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that lookups reach the eviction policy although they no longer
+ * take the shard lock, and that neither a lookup nor usedBytes waits for a put.
+ *
+ * Run: java ProxyCacheTest, exits with 1 if a check failed.
+ */
+public class ProxyCacheTest {
+	public static void main(String[] args) throws Exception {
+		hitsReachPolicy();
+		lookupsDoNotWait();
+		Checks.exit();
+	}
+
+	private static void hitsReachPolicy() {
+		CacheEntry entry = entry();
+		// one shard with room for two entries
+		ProxyCache<String> cache = new ProxyCache<>(entry.weight() * 2 + entry.weight() / 2, 1, budget -> new LruPolicy<>());
+		cache.put("a", entry());
+		cache.put("b", entry());
+		// only buffered, the put below drains it before choosing a victim
+		Checks.check(cache.get("a") != null, "a is cached");
+		cache.put("c", entry());
+		Checks.check(cache.peek("a") != null, "recently read entry is kept");
+		Checks.check(cache.peek("b") == null, "least recently used entry is evicted");
+		Checks.check(cache.hits() == 1 && cache.evictions() == 1, "hit and eviction are counted");
+
+		AtomicInteger accesses = new AtomicInteger();
+		ProxyCache<String> counted = new ProxyCache<>(1 << 20, 1, budget -> new LruPolicy<>() {
+			@Override
+			public void onAccess(String key, boolean hit) {
+				accesses.incrementAndGet();
+			}
+		});
+		for (int i = 0; i < 1000; i++) {
+			counted.get("missing");
+		}
+		counted.put("x", entry());
+		Checks.check(accesses.get() > 0 && accesses.get() <= 1000, "policy saw " + accesses.get() + " of 1000 lookups");
+	}
+
+	private static void lookupsDoNotWait() throws Exception {
+		CountDownLatch adding = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ProxyCache<String> cache = new ProxyCache<>(1 << 20, 1, budget -> new LruPolicy<>() {
+			@Override
+			public void onAdd(String key, long weight) {
+				super.onAdd(key, weight);
+				if (key.equals("slow")) {
+					// holds the shard lock until the lookups are done
+					adding.countDown();
+					await(release);
+				}
+			}
+		});
+		cache.put("a", entry());
+		Thread writer = new Thread(() -> cache.put("slow", entry()));
+		writer.start();
+		adding.await();
+		long start = System.nanoTime();
+		boolean found = true;
+		for (int i = 0; i < 1000; i++) {
+			found &= cache.get("a") != null;
+		}
+		// what /__metrics reads, it must not wait either
+		found &= cache.usedBytes() > 0;
+		long millis = (System.nanoTime() - start) / 1_000_000;
+		release.countDown();
+		writer.join();
+		Checks.check(found, "lookups and usedBytes are answered while a put holds the lock");
+		Checks.check(millis < 1000, "lookups did not wait for the put, took " + millis + "ms");
+		Checks.check(cache.peek("slow") != null, "slow put is kept");
+	}
+
+	private static CacheEntry entry() {
+		byte[] head = "HTTP/1.1 200 OK\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		return new CacheEntry("http://example.com/", CachedBody.of(new byte[1000]), head, null, 10,
+				System.currentTimeMillis(), new Freshness(true, System.currentTimeMillis() + 60_000, null, null));
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
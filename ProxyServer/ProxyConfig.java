@@ -0,0 +1,89 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Startup options of the proxy.
+ * Options are passed as --name=value after the port number,
+ * or as -Dproxy.name=value system properties.
+ */
+class ProxyConfig {
+	private final int port;
+	private final Map<String, String> options = new HashMap<>();
+
+	private ProxyConfig(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Parses the command line, the first plain argument is the port.
+	 */
+	public static ProxyConfig fromArgs(String[] args) {
+		// Default port is 8080 if no args passed
+		int port = 8080;
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				if (eq > 0) {
+					options.put(arg.substring(2, eq), arg.substring(eq + 1));
+				} else {
+					// flags without value are switched on
+					options.put(arg.substring(2), "true");
+				}
+			} else {
+				port = Integer.parseInt(arg);
+			}
+		}
+		ProxyConfig config = new ProxyConfig(port);
+		config.options.putAll(options);
+		return config;
+	}
+
+	public int port() {
+		return port;
+	}
+
+	public String get(String name, String defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			value = System.getProperty("proxy." + name);
+		}
+		return value == null ? defaultValue : value;
+	}
+
+	public int getInt(String name, int defaultValue) {
+		return Integer.parseInt(get(name, Integer.toString(defaultValue)));
+	}
+
+	public boolean getBoolean(String name, boolean defaultValue) {
+		return Boolean.parseBoolean(get(name, Boolean.toString(defaultValue)));
+	}
+
+	/**
+	 * Reads a size like 64m, 512k or 1g (plain numbers are bytes).
+	 */
+	public long getBytes(String name, long defaultValue) {
+		String value = get(name, null);
+		return value == null ? defaultValue : parseBytes(value);
+	}
+
+	/**
+	 * Same for a value we already have, like a part of a longer option.
+	 */
+	public static long parseBytes(String value) {
+		value = value.trim().toLowerCase();
+		long unit = 1;
+		char last = value.charAt(value.length() - 1);
+		if (last == 'k') {
+			unit = 1024L;
+		} else if (last == 'm') {
+			unit = 1024L * 1024;
+		} else if (last == 'g') {
+			unit = 1024L * 1024 * 1024;
+		}
+		if (unit > 1) {
+			value = value.substring(0, value.length() - 1);
+		}
+		return Long.parseLong(value.trim()) * unit;
+	}
+}
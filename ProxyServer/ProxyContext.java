@@ -0,0 +1,73 @@
+import java.io.IOException;
+
+/**
+ * The shared pieces every Request works with, built once from the config.
+ */
+class ProxyContext {
+	final ProxyConfig config;
+	final ProxyCache<CacheKey> cache;
+	final CacheKey.Builder keys;
+	// bigger responses are streamed to the client and not cached
+	final long maxObjectSize;
+	// how long a response without any caching headers stays fresh
+	final long defaultTtl;
+	// stale windows for responses that do not give their own
+	// stale-while-revalidate or stale-if-error
+	final long staleWhileRevalidate;
+	final long staleIfError;
+	// fetches stale entries again while clients get the stale copy
+	final Refresher refresher;
+	// concurrent misses on the same key share one trip to the server
+	final SingleFlight<CacheKey, CacheEntry> flights = new SingleFlight<>();
+	// how long a coalesced request waits for the first one's result
+	final long coalesceTimeout;
+	// keep-alive connections to the origin servers
+	final OriginPool origins;
+	// log.txt is written by a background thread
+	final AccessLog accessLog;
+	// client and server names for the log, resolved in the background
+	final HostResolver resolver;
+	// counters and latencies for /__metrics
+	final ProxyMetrics metrics = new ProxyMetrics();
+	// /__metrics is only answered to local clients unless --metrics-remote is set
+	final boolean metricsRemote;
+	// per client rate and per origin concurrency limits
+	final Limits limits;
+	// CONNECT tunnels, relayed on their own selector thread
+	final Tunnels tunnels;
+	// second tier on disk, null unless --disk-cache-dir is given
+	final DiskCache disk;
+	// hot set saved for the next start, null unless --snapshot-file is given
+	final Snapshot snapshot;
+
+	ProxyContext(ProxyConfig config) throws IOException {
+		this.config = config;
+		// cache is in memory, with --disk-cache-dir it is also written into a disk
+		// so a restart does not start cold
+		// it is bounded by --cache-size, when full the --eviction policy
+		// (lru or tinylfu) picks what goes out
+		// keys are spread over --cache-shards parts that each evict on their own
+		long cacheSize = config.getBytes("cache-size", 256L * 1024 * 1024);
+		String eviction = config.get("eviction", "tinylfu");
+		this.cache = new ProxyCache<>(cacheSize, config.getInt("cache-shards", 16),
+				shardSize -> EvictionPolicy.create(eviction, shardSize));
+		// one object may not take more than one shard of the cache
+		this.maxObjectSize = config.getBytes("max-object-size", Math.min(cache.shardBytes(), 64L * 1024 * 1024));
+		// cache key is method + url + the --vary-headers (Cookie and Authorization by default)
+		this.keys = CacheKey.Builder.fromConfig(config);
+		this.defaultTtl = config.getInt("default-ttl", 300) * 1000L;
+		// both are off (0) unless given, the response can still ask for them
+		this.staleWhileRevalidate = config.getInt("stale-while-revalidate", 0) * 1000L;
+		this.staleIfError = config.getInt("stale-if-error", 0) * 1000L;
+		this.refresher = Refresher.fromConfig(config);
+		this.coalesceTimeout = config.getInt("coalesce-timeout", 30) * 1000L;
+		this.origins = OriginPool.fromConfig(config);
+		this.accessLog = AccessLog.fromConfig(config);
+		this.resolver = HostResolver.fromConfig(config);
+		this.disk = DiskCache.fromConfig(config);
+		this.snapshot = Snapshot.fromConfig(config, cacheSize, disk);
+		this.limits = Limits.fromConfig(config);
+		this.tunnels = Tunnels.fromConfig(config, accessLog, metrics);
+		this.metricsRemote = config.getBoolean("metrics-remote", false);
+	}
+}
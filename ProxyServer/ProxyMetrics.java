@@ -0,0 +1,220 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Counters and latency histograms of the proxy, rendered in the Prometheus
+ * text format on the /__metrics path.
+ * A request is a hit when it was answered from memory or disk without
+ * waiting for the origin, everything else (coalesced, revalidated,
+ * downloaded, streamed) is a miss.
+ */
+class ProxyMetrics {
+	// upper bounds of the latency buckets in seconds, hits take well under a millisecond
+	private static final double[] BUCKETS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+			0.25, 0.5, 1, 2.5, 5, 10 };
+
+	private final LatencyHistogram hitLatency = new LatencyHistogram();
+	private final LatencyHistogram missLatency = new LatencyHistogram();
+	private final LatencyHistogram originFetch = new LatencyHistogram();
+	private final AtomicLong cacheBytes = new AtomicLong();
+	private final AtomicLong originBytes = new AtomicLong();
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private volatile ExecutorService executor;
+	// eden bytes taken out by collections so far, see allocatedBytes
+	private final AtomicLong collectedEden = new AtomicLong();
+
+	public ProxyMetrics() {
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (!(gc instanceof NotificationEmitter)) {
+				continue;
+			}
+			((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+				if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+					return;
+				}
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+						.from((CompositeData) notification.getUserData());
+				Map<String, MemoryUsage> before = info.getGcInfo().getMemoryUsageBeforeGc();
+				Map<String, MemoryUsage> after = info.getGcInfo().getMemoryUsageAfterGc();
+				for (Map.Entry<String, MemoryUsage> pool : before.entrySet()) {
+					if (isEden(pool.getKey()) && after.containsKey(pool.getKey())) {
+						collectedEden.addAndGet(Math.max(0, pool.getValue().getUsed() - after.get(pool.getKey()).getUsed()));
+					}
+				}
+			}, null, null);
+		}
+	}
+
+	public void served(boolean hit, long nanos) {
+		(hit ? hitLatency : missLatency).recordNanos(nanos);
+	}
+
+	public void servedBytes(boolean fromCache, long bytes) {
+		(fromCache ? cacheBytes : originBytes).addAndGet(bytes);
+	}
+
+	public void originFetched(long nanos) {
+		originFetch.recordNanos(nanos);
+	}
+
+	public void connectionOpened() {
+		activeConnections.incrementAndGet();
+	}
+
+	public void connectionClosed() {
+		activeConnections.decrementAndGet();
+	}
+
+	/**
+	 * A connection was turned away with 503 because the workers are overloaded.
+	 */
+	public void rejected() {
+		rejected.incrementAndGet();
+	}
+
+	/**
+	 * The executor requests run on, for its queue depth.
+	 */
+	public void watch(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Heap bytes the JVM allocated since it started. New objects start in
+	 * eden, what a collection takes out of it was allocated since the one
+	 * before, plus what is in it now. Objects allocated straight into the
+	 * old generation (huge arrays) are missed, so it is a lower bound.
+	 */
+	public long allocatedBytes() {
+		long eden = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (isEden(pool.getName())) {
+				eden += pool.getUsage().getUsed();
+			}
+		}
+		return collectedEden.get() + eden;
+	}
+
+	private static boolean isEden(String pool) {
+		return pool.contains("Eden");
+	}
+
+	public double hitRatio() {
+		long hits = hitLatency.count();
+		long total = hits + missLatency.count();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Everything we know about the proxy in the Prometheus text format.
+	 */
+	public String render(ProxyContext context) {
+		StringBuilder out = new StringBuilder(4096);
+		header(out, "proxy_request_duration_seconds", "histogram", "Time from request header to the end of the response");
+		histogram(out, "proxy_request_duration_seconds", "{cache=\"hit\"", hitLatency);
+		histogram(out, "proxy_request_duration_seconds", "{cache=\"miss\"", missLatency);
+		header(out, "proxy_origin_fetch_duration_seconds", "histogram", "Time to download a response from the origin");
+		histogram(out, "proxy_origin_fetch_duration_seconds", "{", originFetch);
+		header(out, "proxy_cache_hit_ratio", "gauge", "Share of requests answered without the origin");
+		sample(out, "proxy_cache_hit_ratio", "", hitRatio());
+		header(out, "proxy_heap_allocated_bytes_total", "counter", "Heap bytes allocated by the proxy JVM, from eden usage at each collection");
+		sample(out, "proxy_heap_allocated_bytes_total", "", allocatedBytes());
+		header(out, "proxy_served_bytes_total", "counter", "Response body bytes sent to clients by source");
+		sample(out, "proxy_served_bytes_total", "{source=\"cache\"}", cacheBytes.get());
+		sample(out, "proxy_served_bytes_total", "{source=\"origin\"}", originBytes.get());
+		header(out, "proxy_active_connections", "gauge", "Open client connections");
+		sample(out, "proxy_active_connections", "", activeConnections.get());
+		ExecutorService watched = executor;
+		if (watched instanceof ThreadPoolExecutor) {
+			header(out, "proxy_executor_queue_depth", "gauge", "Requests waiting for a worker thread");
+			sample(out, "proxy_executor_queue_depth", "", ((ThreadPoolExecutor) watched).getQueue().size());
+			header(out, "proxy_executor_active_threads", "gauge", "Worker threads answering a request");
+			sample(out, "proxy_executor_active_threads", "", ((ThreadPoolExecutor) watched).getActiveCount());
+		}
+		header(out, "proxy_rejected_connections_total", "counter", "Connections answered 503 because the workers were overloaded");
+		sample(out, "proxy_rejected_connections_total", "", rejected.get());
+		header(out, "proxy_throttled_requests_total", "counter", "Requests refused by the client rate or origin concurrency limits");
+		sample(out, "proxy_throttled_requests_total", "{reason=\"client_rate\"}", context.limits.clientThrottled());
+		sample(out, "proxy_throttled_requests_total", "{reason=\"origin_concurrency\"}", context.limits.originThrottled());
+		header(out, "proxy_background_refreshes_total", "counter", "Stale entries handed to the refresher, dropped when its queue was full");
+		sample(out, "proxy_background_refreshes_total", "{result=\"started\"}", context.refresher.started());
+		sample(out, "proxy_background_refreshes_total", "{result=\"dropped\"}", context.refresher.dropped());
+		header(out, "proxy_refresh_queue_length", "gauge", "Stale entries waiting for a refresher thread");
+		sample(out, "proxy_refresh_queue_length", "", context.refresher.queued());
+		header(out, "proxy_active_tunnels", "gauge", "Open CONNECT tunnels");
+		sample(out, "proxy_active_tunnels", "", context.tunnels.active());
+		header(out, "proxy_tunnel_bytes_total", "counter", "Bytes relayed through CONNECT tunnels by direction");
+		sample(out, "proxy_tunnel_bytes_total", "{direction=\"upstream\"}", context.tunnels.bytesUp());
+		sample(out, "proxy_tunnel_bytes_total", "{direction=\"downstream\"}", context.tunnels.bytesDown());
+		header(out, "proxy_cache_entries", "gauge", "Entries in the memory cache");
+		sample(out, "proxy_cache_entries", "", context.cache.size());
+		header(out, "proxy_cache_bytes", "gauge", "Bytes held by the memory cache");
+		sample(out, "proxy_cache_bytes", "", context.cache.usedBytes());
+		header(out, "proxy_cache_max_bytes", "gauge", "Byte budget of the memory cache, --cache-size");
+		sample(out, "proxy_cache_max_bytes", "", context.cache.maxBytes());
+		header(out, "proxy_cache_evictions_total", "counter", "Entries evicted from the memory cache");
+		sample(out, "proxy_cache_evictions_total", "", context.cache.evictions());
+		header(out, "proxy_cache_lookups_total", "counter", "Lookups in the memory cache by result");
+		sample(out, "proxy_cache_lookups_total", "{result=\"hit\"}", context.cache.hits());
+		sample(out, "proxy_cache_lookups_total", "{result=\"miss\"}", context.cache.misses());
+		header(out, "proxy_cache_rejections_total", "counter", "Entries not kept, too big for a shard or not admitted by the policy");
+		sample(out, "proxy_cache_rejections_total", "", context.cache.rejections());
+		if (context.disk != null) {
+			header(out, "proxy_disk_cache_bytes", "gauge", "Bytes held by the disk cache");
+			sample(out, "proxy_disk_cache_bytes", "", context.disk.usedBytes());
+			header(out, "proxy_disk_cache_hits_total", "counter", "Requests answered from the disk cache");
+			sample(out, "proxy_disk_cache_hits_total", "", context.disk.hits());
+		}
+		header(out, "proxy_access_log_dropped_total", "counter", "Access log entries dropped because the buffer was full");
+		sample(out, "proxy_access_log_dropped_total", "", context.accessLog.dropped());
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	// labels is the opening of the label set, the bucket bound is added to it
+	private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+		String separator = labels.length() > 1 ? "," : "";
+		// the buckets before the count, see LatencyHistogram.recordNanos
+		long[] buckets = histogram.countsAtOrBelow(BUCKETS);
+		long count = histogram.count();
+		for (int i = 0; i < BUCKETS.length; i++) {
+			sample(out, name + "_bucket", labels + separator + "le=\"" + bound(BUCKETS[i]) + "\"}", buckets[i]);
+		}
+		sample(out, name + "_bucket", labels + separator + "le=\"+Inf\"}", count);
+		String rest = labels.length() > 1 ? labels + "}" : "";
+		sample(out, name + "_sum", rest, histogram.sumSeconds());
+		sample(out, name + "_count", rest, count);
+	}
+
+	// 0.0001 rather than 1.0E-4
+	private static String bound(double seconds) {
+		return BigDecimal.valueOf(seconds).stripTrailingZeros().toPlainString();
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, double value) {
+		out.append(name).append(labels).append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			out.append((long) value);
+		} else {
+			out.append(String.format(Locale.ROOT, "%.6g", value));
+		}
+		out.append('\n');
+	}
+}
@@ -0,0 +1,59 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts the proxy in its own JVM for the load test and the benchmark,
+ * so the numbers are not mixed up with the load generator's.
+ */
+final class ProxyProcess {
+	private ProxyProcess() {
+	}
+
+	/**
+	 * Starts Server on port and returns once it accepts connections.
+	 * jvmArgs go to the java command, proxyArgs to the proxy.
+	 */
+	static Process start(int port, List<String> jvmArgs, List<String> proxyArgs) throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<String> command = new ArrayList<>();
+		command.add(java);
+		command.addAll(jvmArgs);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("Server");
+		command.add(Integer.toString(port));
+		command.addAll(proxyArgs);
+		ProcessBuilder builder = new ProcessBuilder(command);
+		// the proxy prints a lot per request, we only want the numbers here
+		builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process process = builder.start();
+		// wait until it accepts connections
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				return process;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		process.destroy();
+		throw new IOException("proxy did not start on port " + port);
+	}
+
+	/**
+	 * Splits a string of arguments on whitespace, for options like --proxy-args.
+	 */
+	static List<String> split(String args) {
+		List<String> list = new ArrayList<>();
+		for (String arg : args.trim().split("\\s+")) {
+			if (!arg.isEmpty()) {
+				list.add(arg);
+			}
+		}
+		return list;
+	}
+}
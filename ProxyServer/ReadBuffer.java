@@ -0,0 +1,57 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Lookups of one cache shard, recorded without taking the shard's lock.
+ * The eviction policy is told about them in batches by whoever holds the
+ * lock next. The buffer is lossy: when it is full, or two readers race
+ * for the same slot, the lookup is dropped. The policy only needs a good
+ * sample of what is popular, not every single access.
+ */
+final class ReadBuffer<K> {
+	static final int SIZE = 128;
+	private static final int MASK = SIZE - 1;
+
+	private final AtomicReferenceArray<K> keys = new AtomicReferenceArray<>(SIZE);
+	// slots handed out so far
+	private final AtomicLong writes = new AtomicLong();
+	// slots given to the policy so far, only written by the drain under the lock
+	private volatile long reads;
+
+	/**
+	 * Records the key unless the buffer is full or busy. Returns true when
+	 * it is half full, then the caller should drain it if the lock is free.
+	 */
+	public boolean offer(K key) {
+		long write = writes.get();
+		if (write - reads >= SIZE) {
+			return true;
+		}
+		if (!writes.compareAndSet(write, write + 1)) {
+			return false;
+		}
+		keys.lazySet((int) (write & MASK), key);
+		return write + 1 - reads >= SIZE / 2;
+	}
+
+	/**
+	 * Hands the recorded keys to consumer, only called under the shard's lock.
+	 */
+	public void drain(Consumer<K> consumer) {
+		long read = reads;
+		long end = writes.get();
+		while (read < end) {
+			int index = (int) (read & MASK);
+			K key = keys.get(index);
+			if (key == null) {
+				// the slot is taken but the key is not in yet, the next drain gets it
+				break;
+			}
+			keys.lazySet(index, null);
+			consumer.accept(key);
+			read++;
+		}
+		reads = read;
+	}
+}
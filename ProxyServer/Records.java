@@ -0,0 +1,63 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Strings in the binary records of the disk cache and the snapshot:
+ * an int length, -1 for null, and the UTF-8 bytes.
+ * Reading a length past the end of the record throws
+ * BufferUnderflowException before anything is allocated for it.
+ */
+final class Records {
+	private Records() {
+	}
+
+	/**
+	 * The bytes to store for value, null for null.
+	 */
+	static byte[] utf(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Bytes putString takes for the result of utf.
+	 */
+	static int length(byte[] utf) {
+		return 4 + (utf == null ? 0 : utf.length);
+	}
+
+	static void putString(ByteBuffer buffer, byte[] utf) {
+		buffer.putInt(utf == null ? -1 : utf.length);
+		if (utf != null) {
+			buffer.put(utf);
+		}
+	}
+
+	static String string(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		return new String(bytes(buffer, length), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * An int length and that many bytes, for heads and bodies.
+	 */
+	static byte[] bytes(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			throw new BufferUnderflowException();
+		}
+		return bytes(buffer, length);
+	}
+
+	private static byte[] bytes(ByteBuffer buffer, int length) {
+		if (length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
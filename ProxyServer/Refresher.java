@@ -0,0 +1,73 @@
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches stale entries again in the background while clients are served
+ * the stale copy (stale-while-revalidate).
+ * It has --refresh-threads threads and room for --refresh-queue waiting
+ * keys. A key is refreshed once at a time however many clients ask, and
+ * when the queue is full the caller fetches in the foreground as before.
+ */
+class Refresher {
+	private final ThreadPoolExecutor pool;
+	private final Set<CacheKey> refreshing = ConcurrentHashMap.newKeySet();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public Refresher(int threads, int queueSize) {
+		AtomicInteger count = new AtomicInteger();
+		this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize), r -> {
+					Thread thread = new Thread(r, "refresher-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	public static Refresher fromConfig(ProxyConfig config) {
+		return new Refresher(config.getInt("refresh-threads", 4), config.getInt("refresh-queue", 256));
+	}
+
+	/**
+	 * Runs task for the key in the background unless it already runs.
+	 * Returns false if there was no room, the caller has to fetch itself.
+	 */
+	public boolean refresh(CacheKey key, Runnable task) {
+		if (!refreshing.add(key)) {
+			return true;
+		}
+		try {
+			pool.execute(() -> {
+				try {
+					task.run();
+				} finally {
+					refreshing.remove(key);
+				}
+			});
+			started.incrementAndGet();
+			return true;
+		} catch (RejectedExecutionException e) {
+			refreshing.remove(key);
+			dropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	public long started() {
+		return started.get();
+	}
+
+	public long dropped() {
+		return dropped.get();
+	}
+
+	public int queued() {
+		return pool.getQueue().size();
+	}
+}
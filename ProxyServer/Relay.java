@@ -0,0 +1,95 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Copies a response from the origin to the client and, at the same time,
+ * into the cache. Work per byte is constant and nothing is allocated per read.
+ */
+class Relay {
+	static final int BUFFER_SIZE = 16 * 1024;
+
+	private Relay() {
+	}
+
+	/**
+	 * Reads in until the end and writes every packet to client and,
+	 * if cacheWriter is not null, to the cache.
+	 * Returns the number of bytes copied.
+	 */
+	public static long copy(InputStream in, OutputStream client, CachedBody.Builder cacheWriter, byte[] buffer)
+			throws IOException {
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			client.write(buffer, 0, read);
+			if (cacheWriter != null) {
+				cacheWriter.write(buffer, 0, read);
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Like copy, for a gzip body and a client that does not take gzip.
+	 * The cache gets the compressed bytes as they come from in, the client
+	 * gets them inflated, both while streaming.
+	 * Returns the number of compressed bytes read.
+	 */
+	public static long copyInflated(InputStream in, OutputStream client, CachedBody.Builder cacheWriter,
+			byte[] buffer) throws IOException {
+		Tee tee = new Tee(in, cacheWriter);
+		PushbackInputStream source = new PushbackInputStream(tee);
+		int first = source.read();
+		if (first == -1) {
+			// an empty body is not even a gzip header
+			return 0;
+		}
+		source.unread(first);
+		copy(new GZIPInputStream(source, BUFFER_SIZE), client, null, buffer);
+		// whatever follows the gzip trailer still belongs in the cache
+		while (tee.read(buffer) != -1) {
+			// only read for the tee
+		}
+		return tee.count;
+	}
+
+	// hands every byte read through it to the cache as well
+	private static class Tee extends FilterInputStream {
+		private final CachedBody.Builder cacheWriter;
+		long count;
+
+		Tee(InputStream in, CachedBody.Builder cacheWriter) {
+			super(in);
+			this.cacheWriter = cacheWriter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1) {
+				count++;
+				if (cacheWriter != null) {
+					cacheWriter.write(new byte[] { (byte) b }, 0, 1);
+				}
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0) {
+				count += read;
+				if (cacheWriter != null) {
+					cacheWriter.write(b, off, read);
+				}
+			}
+			return read;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Measures Relay.copy throughput for response sizes from 1KB to 100MB.
+ * Throughput should stay flat as the size grows, the old per-byte String
+ * concatenation made it drop quadratically.
+ *
+ * Run: java -Xms2g -Xmx2g RelayBenchmark [rounds]
+ * (a fixed heap keeps GC resizing out of the 100MB numbers)
+ */
+public class RelayBenchmark {
+	private static final long[] SIZES = { 1L << 10, 16L << 10, 256L << 10, 1L << 20, 10L << 20, 100L << 20 };
+
+	public static void main(String[] args) throws IOException {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		byte[] buffer = new byte[Relay.BUFFER_SIZE];
+		// warm up so the JIT is done before we measure
+		for (int i = 0; i < 2000; i++) {
+			run(64L << 10, buffer);
+		}
+		System.out.printf("%12s %12s %12s%n", "size", "MB/s", "ns/byte");
+		for (long size : SIZES) {
+			// small sizes are repeated so every row copies about the same amount
+			int repeat = (int) Math.max(1, (100L << 20) / size);
+			double best = Double.MAX_VALUE;
+			for (int r = 0; r < rounds; r++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < repeat; i++) {
+					run(size, buffer);
+				}
+				best = Math.min(best, (System.nanoTime() - start) / (double) repeat);
+			}
+			double mbPerSecond = (size / (1024.0 * 1024.0)) / (best / 1e9);
+			System.out.printf("%12s %12.1f %12.3f%n", label(size), mbPerSecond, best / size);
+		}
+	}
+
+	private static void run(long size, byte[] buffer) throws IOException {
+		CachedBody.Builder cacheWriter = new CachedBody.Builder();
+		Relay.copy(new SourceStream(size), new SinkStream(), cacheWriter, buffer);
+		if (cacheWriter.build().length() != size) {
+			throw new IllegalStateException("lost bytes");
+		}
+	}
+
+	private static String label(long size) {
+		return size >= (1 << 20) ? (size >> 20) + "MB" : (size >> 10) + "KB";
+	}
+
+	// stands in for the origin, hands out packets like a socket would
+	private static class SourceStream extends InputStream {
+		private static final int PACKET = 2048;
+		private long remaining;
+
+		SourceStream(long size) {
+			this.remaining = size;
+		}
+
+		@Override
+		public int read() {
+			if (remaining == 0) {
+				return -1;
+			}
+			remaining--;
+			return 'x';
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (remaining == 0) {
+				return -1;
+			}
+			int n = (int) Math.min(Math.min(len, PACKET), remaining);
+			remaining -= n;
+			return n;
+		}
+	}
+
+	// stands in for the client socket
+	private static class SinkStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
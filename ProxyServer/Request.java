@@ -0,0 +1,884 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+class Request implements Workers.Task{
+	private Socket client;
+	private ProxyContext context;
+	private ProxyCache<CacheKey> cache;
+	private long startTime;
+	// decided per request from its Connection header
+	private boolean keepAlive;
+	// from its Accept-Encoding, gzip bodies are inflated for the others
+	private boolean acceptsGzip;
+	// bodies are relayed through this one buffer, also across keep-alive requests
+	private byte[] datapacket;
+	// the socket now belongs to a CONNECT tunnel, we must not close it
+	private boolean handedOff;
+	// the engine already took the rate limit token for the next request
+	private boolean admitted;
+	// a stale entry fetched again by the refresher, there is no client
+	private boolean background;
+	// the head of the response is on its way, a stale copy can no longer replace it
+	private boolean responseStarted;
+	// the single range this request asks for, null for the whole body
+	private ByteRange range;
+	// only send the range if the body is still this ETag or date
+	private String ifRange;
+	// origin slot the engine took for us before scheduling, see Limits
+	private String reservedOrigin;
+	// the flight this request leads, others wait for what it fetches
+	private SingleFlight.Flight<CacheEntry> leading;
+	// the client's Cache-Control: no-cache wants the origin to confirm our copy first
+	private boolean noCache;
+	// no-store, the response is not kept and our copy is left as it is
+	private boolean noStore;
+	public Request(Socket client,ProxyContext context,long startTime) {
+		this.client = client;
+		this.context = context;
+		this.cache = context.cache;
+		this.startTime = startTime;
+		// TODO Auto-generated constructor stub
+	}
+	@Override
+	public void run() {
+		// TODO Auto-generated method stub
+		// the streams are not closed on their own, that would close a tunneled socket
+		try {
+			BufferedReader inputClientReader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+			OutputStream outputClient = new BufferedOutputStream(client.getOutputStream(), Relay.BUFFER_SIZE);
+			// a keep-alive client sends one request after the other on this socket
+			// pipelined requests are already waiting in the reader, we answer them in order
+			while(true){
+				// take all the request header components
+				// the cache key is built from the method, the url and the vary headers
+				// in case of multiple client we dont want to mess up with their cookies
+				// if we dont check cookie, we will forward someone else's fb profile to you
+				ArrayList<String> requestComponents = new ArrayList<>();
+				// an idle keep-alive client waits here, that time is not ours
+				String input = inputClientReader.readLine();
+				startTime = System.nanoTime();
+				// read all the request byte from client socket and create our header message
+				while(input!=null && input.length()>0){
+					requestComponents.add(input);
+					input = inputClientReader.readLine();
+				}
+				if(!handle(requestComponents, outputClient)){
+					break;
+				}
+			}
+		} catch (Exception e) {
+			// TODO Auto-generated catch block
+			//e.printStackTrace();
+		}
+		finally{
+			if(!handedOff){
+				context.metrics.connectionClosed();
+				try {
+					client.close();
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					//e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	@Override
+	public Object client() {
+		return client.getInetAddress();
+	}
+	
+	// too many are waiting for a thread, this client gets a quick 503
+	// instead of a long wait for a response that may come too late
+	@Override
+	public void reject() {
+		context.metrics.rejected();
+		refuse("HTTP/1.1 503 Service Unavailable");
+	}
+	
+	/**
+	 * The engine checked the client's rate limit before scheduling us.
+	 */
+	void admitted() {
+		admitted = true;
+	}
+	
+	/**
+	 * The engine already counted the fetch against the origin's limit,
+	 * the slot is used by our fetch or given back by releaseOrigin.
+	 */
+	void reservedOrigin(String slot) {
+		reservedOrigin = slot;
+	}
+	
+	/**
+	 * Gives back a reserved origin slot the request did not need,
+	 * like for a cache hit.
+	 */
+	void releaseOrigin() {
+		if(reservedOrigin!=null){
+			context.limits.leaveOrigin(reservedOrigin);
+			reservedOrigin = null;
+		}
+	}
+	
+	// answers with the status and closes, without reading the request
+	void refuse(String statusLine) {
+		try {
+			client.getOutputStream().write(HttpHead.build(statusLine, null, 0, false));
+		} catch (IOException e) {
+			// it is gone anyway
+		} finally {
+			context.metrics.connectionClosed();
+			try {
+				client.close();
+			} catch (IOException e) {
+				// nothing left to do
+			}
+		}
+	}
+	
+	/**
+	 * True once the connection was given to a CONNECT tunnel,
+	 * the engine must leave it open.
+	 */
+	boolean handedOff() {
+		return handedOff;
+	}
+	
+	/**
+	 * Answers one request whose header lines were already read.
+	 * The blocking engine reads them from the socket, the nio engine
+	 * from its selector loop, the rest is the same for both.
+	 * Returns true if the connection stays open for the next request.
+	 */
+	boolean handle(List<String> requestComponents, OutputStream outputClient) throws IOException{
+		StringBuilder builder = new StringBuilder();
+		builder.append("Client Connected").append(System.lineSeparator())
+		.append("Client Host Name : ").append(context.resolver.hostName(client.getInetAddress())).append(System.lineSeparator())
+		.append("Client Host Address : ").append(client.getInetAddress().getHostAddress()).append(System.lineSeparator())
+		.append("Port : ").append(client.getPort()).append(System.lineSeparator());
+		builder.append(System.lineSeparator());
+		
+		
+		int requestSize = 0;
+		for (String line : requestComponents) {
+			requestSize+=line.length();
+		}
+		// for some reason we could not read any byte
+		// not happened though
+		// a keep-alive client that closed the connection also ends up here
+		if(requestComponents.isEmpty()){
+			return false;
+		}
+		// every request needs a token of the client's bucket
+		// the engine took the one of the first request before scheduling it
+		if(admitted){
+			admitted = false;
+		}else if(!context.limits.admitClient(client.getInetAddress())){
+			outputClient.write(HttpHead.build("HTTP/1.1 429 Too Many Requests", null, 0, false));
+			outputClient.flush();
+			return false;
+		}
+		String[] getReq = requestComponents.get(0).trim().split(" ");
+		String reqType = getReq[0];
+		keepAlive = HttpHead.wantsKeepAlive(requestComponents);
+		acceptsGzip = HttpHead.accepts(requestComponents, "gzip");
+		// a Range asks for a part of the body, we answer it from the cache when we have those bytes
+		range = ByteRange.parse(requestComponents);
+		ifRange = ByteRange.header(requestComponents, "If-Range");
+		noCache = HttpHead.requests(requestComponents, "no-cache") || HttpHead.requests(requestComponents, "max-age=0");
+		noStore = HttpHead.requests(requestComponents, "no-store");
+		// HTTPS goes through a tunnel, we only see encrypted bytes
+		if(reqType.toUpperCase().equals("CONNECT") && getReq.length>=2){
+			tunnel(getReq[1], outputClient);
+			return false;
+		}
+		// Take out the GET to know the resource we need
+		// We are handling only GET
+		if(!reqType.toUpperCase().equals("GET") || getReq.length<2){
+			byte[] head = HttpHead.build("HTTP/1.1 501 Not Implemented", null, 0, false);
+			outputClient.write(head);
+			outputClient.flush();
+			return false;
+		}
+		// a request for our own path and not a url to fetch
+		if(getReq[1].equals("/__metrics")){
+			serveMetrics(outputClient);
+			return keepAlive;
+		}
+		builder.append("Request Size : ").append(requestSize).append(System.lineSeparator());
+		builder.append("Request Header").append(System.lineSeparator());
+		for (String string : requestComponents) {
+			builder.append(string).append(System.lineSeparator());
+		}
+		CacheKey cacheKey = context.keys.build(reqType, getReq[1], requestComponents);
+		// check in the cache if it contains the request
+		// if it does and it is still fresh, return from here only
+		builder.append(System.lineSeparator());
+		CacheEntry cached = cache.get(cacheKey);
+		long now = System.currentTimeMillis();
+		if(cached!=null && !noCache && cached.isFresh(now)){
+			serveCached(cached, "Cached", builder, outputClient);
+			return keepAlive;
+		}
+		// not in memory, maybe we still have it on disk from before
+		if(cached==null && context.disk!=null){
+			DiskCache.Location onDisk = context.disk.get(cacheKey);
+			if(onDisk!=null){
+				boolean fresh = !noCache && onDisk.isFresh(now);
+				if(fresh && (onDisk.contentEncoding==null || acceptsGzip)){
+					serveFromDisk(onDisk, builder, outputClient);
+					return keepAlive;
+				}
+				// stale, read it back so it can be revalidated
+				// or compressed for a client that wants it plain, it is inflated on the way out
+				try{
+					cached = context.disk.load(onDisk);
+				}catch(IOException e){
+					cached = null;
+				}
+				if(fresh && cached!=null){
+					serveCached(cached, "Disk Cached", builder, outputClient);
+					return keepAlive;
+				}
+			}
+		}
+		// stale but still inside its stale-while-revalidate window,
+		// this client gets it right away and the refresher fetches it again
+		// if the refresher is full we fetch it ourselves like any stale entry
+		if(cached!=null && !noCache && cached.canServeWhileRevalidating(now, context.staleWhileRevalidate)
+				&& refreshInBackground(requestComponents, getReq, cacheKey, cached)){
+			serveCached(cached, "Stale", builder, outputClient);
+			return keepAlive;
+		}
+		// a range of something we do not have whole, earlier ranges may have brought these bytes
+		// range misses go to the server on their own, each one only brings its part
+		if(range!=null && cached==null){
+			CacheEntry partial = cache.get(partialKey(getReq[1], requestComponents));
+			if(partial instanceof PartialEntry && !noCache && partial.isFresh(now)
+					&& servePartial((PartialEntry)partial, builder, outputClient)){
+				return keepAlive;
+			}
+			fetch(requestComponents, reqType, getReq, cacheKey, null, builder, outputClient);
+			return keepAlive;
+		}
+		// Not in cache or stale so we need to go to server
+		// for a stale entry we ask the server if it changed
+		// so it does not have to send the whole thing again
+		// many clients may miss on the same resource at once
+		// only the first one goes to the server, the rest wait for its result
+		SingleFlight.Flight<CacheEntry> flight = context.flights.begin(cacheKey);
+		if(!flight.isLeader()){
+			// waiting is not fetching, the slot goes to someone who does
+			releaseOrigin();
+			CacheEntry shared = flight.await(context.coalesceTimeout);
+			if(shared!=null){
+				serveCached(shared, "Coalesced", builder, outputClient);
+				return keepAlive;
+			}
+			// the first one could not cache it, we need our own copy
+			fetch(requestComponents, reqType, getReq, cacheKey, cached, builder, outputClient);
+			return keepAlive;
+		}
+		CacheEntry fetched = null;
+		leading = flight;
+		try{
+			fetched = fetch(requestComponents, reqType, getReq, cacheKey, cached, builder, outputClient);
+		}finally{
+			leading = null;
+			context.flights.finish(cacheKey, flight, fetched);
+		}
+		return keepAlive;
+	}
+	
+	// hands the stale entry to the refresher, false if it had no room
+	private boolean refreshInBackground(List<String> requestComponents, String[] getReq, CacheKey cacheKey, CacheEntry stale){
+		// the refresh runs after this request moved on, it gets its own copies
+		List<String> lines = new ArrayList<>(requestComponents);
+		String[] req = getReq.clone();
+		return context.refresher.refresh(cacheKey,
+				() -> new Request(null, context, System.nanoTime()).refresh(lines, req, cacheKey, stale));
+	}
+	
+	/**
+	 * Fetches a stale entry again for the cache, nobody waits for the answer.
+	 * Runs on the refresher's threads. A client that missed on the key at
+	 * the same time already fetches it, then this one has nothing to do.
+	 */
+	void refresh(List<String> requestComponents, String[] getReq, CacheKey cacheKey, CacheEntry stale){
+		background = true;
+		// what we cache is the same for every client
+		acceptsGzip = true;
+		SingleFlight.Flight<CacheEntry> flight = context.flights.begin(cacheKey);
+		if(!flight.isLeader()){
+			return;
+		}
+		StringBuilder builder = new StringBuilder();
+		builder.append("Background Refresh").append(System.lineSeparator())
+		.append(getReq[1]).append(System.lineSeparator()).append(System.lineSeparator());
+		CacheEntry fetched = null;
+		leading = flight;
+		try{
+			fetched = fetch(requestComponents, getReq[0], getReq, cacheKey, stale, builder, OutputStream.nullOutputStream());
+		}catch(IOException e){
+			// the stale copy stays, the next request past its window tries again
+			log(builder.append("Error: ").append(e).append(System.lineSeparator())
+					.append(System.lineSeparator()).append(System.lineSeparator()).toString());
+		}finally{
+			leading = null;
+			context.flights.finish(cacheKey, flight, fetched);
+		}
+	}
+	
+	// gets the resource from the server, writes it to the client and caches it
+	// cached is our stale copy if we have one, it is revalidated instead of downloaded again
+	// if the server cannot be reached and the copy is inside its stale-if-error window
+	// the client gets the copy instead of an error
+	// returns what is in the cache for the request now, or null
+	private CacheEntry fetch(List<String> requestComponents, String reqType, String[] getReq, CacheKey cacheKey,
+			CacheEntry cached, StringBuilder builder, OutputStream outputClient) throws IOException{
+		responseStarted = false;
+		URL url = new URL(getReq[1]);
+		// a host that already has --origin-max-concurrent fetches is slow or dead,
+		// more workers waiting for it would not help anyone
+		// the nio engine may have taken the slot before it scheduled us
+		String originSlot = reservedOrigin;
+		reservedOrigin = null;
+		if(originSlot==null){
+			originSlot = context.limits.enterOrigin(url);
+		}
+		if(originSlot==null){
+			if(servesOnError(cached)){
+				serveCached(cached, "Stale If Error", builder, outputClient);
+				return cached;
+			}
+			outputClient.write(HttpHead.build("HTTP/1.1 503 Service Unavailable", null, 0, keepAlive));
+			outputClient.flush();
+			return null;
+		}
+		// connections to the server are kept alive and reused by the JDK, see OriginPool
+		long fetchStart = System.nanoTime();
+		try{
+			try{
+				return download(url, requestComponents, reqType, getReq, cacheKey, cached, builder, outputClient);
+			}finally{
+				context.metrics.originFetched(System.nanoTime()-fetchStart);
+			}
+		}catch(IOException e){
+			// nothing went to the client yet, it can still get the stale copy
+			if(!responseStarted && servesOnError(cached)){
+				serveCached(cached, "Stale If Error", builder, outputClient);
+				return cached;
+			}
+			throw e;
+		}finally{
+			context.limits.leaveOrigin(originSlot);
+		}
+	}
+	
+	private boolean servesOnError(CacheEntry cached){
+		return cached!=null && cached.canServeOnError(System.currentTimeMillis(), context.staleIfError);
+	}
+	
+	private CacheEntry download(URL url, List<String> requestComponents, String reqType, String[] getReq, CacheKey cacheKey,
+			CacheEntry cached, StringBuilder builder, OutputStream outputClient) throws IOException{
+		HttpURLConnection con = (HttpURLConnection)url.openConnection();
+		con.setRequestMethod(reqType.toUpperCase());
+		con.setDoOutput(true);
+		con.setConnectTimeout(5000);
+		// Write all the request headers we received from the client 
+		if(requestComponents.size()>1){
+			for(int i=1;i<requestComponents.size();i++){
+				if(requestComponents.get(i).trim().isEmpty())
+					continue;
+				// we ask for gzip ourselves below, whatever this client takes
+				if(requestComponents.get(i).trim().toLowerCase().startsWith("accept-encoding"))
+					continue;
+				// our connection to the server is not the client's connection to us
+				if(HttpHead.isHopByHop(requestComponents.get(i)))
+					continue;
+				// the client's own conditionals are not forwarded,
+				// a 304 without body is nothing we could cache or send
+				if(requestComponents.get(i).trim().toLowerCase().startsWith("if-none-match")
+						|| requestComponents.get(i).trim().toLowerCase().startsWith("if-modified-since"))
+					continue;
+				// revalidating our whole copy, we want a 304 or the whole new body
+				// the client's range is cut from it on the way out
+				if(cached!=null && (requestComponents.get(i).trim().toLowerCase().startsWith("range:")
+						|| requestComponents.get(i).trim().toLowerCase().startsWith("if-range:")))
+					continue;
+				String[] keyVal = requestComponents.get(i).trim().split(" ");
+				if(keyVal.length>1)
+					con.setRequestProperty(keyVal[0].substring(0, keyVal[0].length()-1).trim(), keyVal[1].trim());
+				else{
+					con.setRequestProperty(keyVal[0].substring(0, keyVal[0].length()-1).trim(), "");
+				}
+			}
+		}
+		// the compressed body is cached once and serves every client,
+		// the ones that do not take gzip get it inflated
+		// a part of a gzip body cannot be inflated, their ranges are asked plain
+		con.setRequestProperty("Accept-Encoding", range!=null && !acceptsGzip ? "identity" : "gzip");
+		if(cached!=null && cached.hasValidators()){
+			if(cached.etag()!=null)
+				con.setRequestProperty("If-None-Match", cached.etag());
+			if(cached.lastModified()!=null)
+				con.setRequestProperty("If-Modified-Since", cached.lastModified());
+		}
+		// get all the response header
+		// the end to end ones go to the client and into the cache with the body
+		// framing and connection headers are written by us, see HttpHead.origin
+		String responseStatus = "";
+		Map<String, List<String>> map = con.getHeaderFields();
+		for (String key : map.keySet()) {
+			if(key==null || key.isEmpty()){
+				String sHeader = map.get(key).get(0);
+				if(sHeader.contains(con.getResponseCode()+"")){
+					responseStatus = sHeader;
+				}
+			}
+		}
+		InputStream serverReader;
+		boolean error = false;
+		// Check if we got the correct status
+		// 200 means OK
+		// Over 400 is some type of error
+		// This is error handling 
+		// 404 is not found
+		int statusCode = con.getResponseCode();
+		// 304 means our stale copy is still good
+		// refresh it and send it without downloading the body again
+		// what the 304 leaves out still counts from the stored head, like its max-age
+		if(statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached!=null){
+			byte[] merged = HttpHead.merge(cached.head(), map);
+			Map<String, List<String>> fields = HttpHead.fields(merged);
+			Freshness revalidated = Freshness.parse(fields, System.currentTimeMillis(), context.defaultTtl);
+			cached = cached.revalidated(merged, revalidated);
+			if(noStore){
+				// the client does not want it kept, the copy stays as it was
+			}else if(revalidated.isStorable() && context.keys.covers(fields)){
+				cache.put(cacheKey, cached);
+				if(context.disk!=null)
+					context.disk.store(cacheKey, cached);
+			}else{
+				cache.remove(cacheKey);
+				if(context.disk!=null)
+					context.disk.remove(cacheKey);
+			}
+			// closing the empty body gives the connection back for reuse
+			con.getInputStream().close();
+			serveCached(cached, "Revalidated", builder, outputClient);
+			return cached;
+		}
+		// the server is failing, a stale copy inside its stale-if-error window is better
+		if(statusCode >= 500 && servesOnError(cached)){
+			InputStream errorBody = con.getErrorStream();
+			if(errorBody!=null)
+				errorBody.close();
+			serveCached(cached, "Stale If Error", builder, outputClient);
+			return cached;
+		}
+		if (statusCode >= 200 && statusCode < 400) {
+		   // Create an InputStream in order to extract the response object
+		serverReader = con.getInputStream();
+		}
+		else {
+			// get the response for error like page not found
+			serverReader = con.getErrorStream();
+			error = true;
+		}
+		if(serverReader==null){
+			// some errors come without any body
+			serverReader = new ByteArrayInputStream(new byte[0]);
+		}
+		
+		// the client needs the length to know where the body ends
+		// if the server did not tell us, it goes out in chunks
+		String statusLine = HttpHead.statusLine(statusCode, con.getResponseMessage());
+		long contentLength = con.getContentLengthLong();
+		String contentEncoding = con.getContentEncoding();
+		if(contentEncoding!=null && (contentEncoding.trim().isEmpty() || contentEncoding.trim().equalsIgnoreCase("identity"))){
+			contentEncoding = null;
+		}
+		// 204, a 304 we have no copy for and such end with the head
+		boolean hasBody = HttpHead.hasBody(reqType, statusCode);
+		boolean inflate = hasBody && contentEncoding!=null && contentEncoding.trim().equalsIgnoreCase("gzip") && !acceptsGzip;
+		// a 206 is one part of the body, where it goes is in its Content-Range
+		// without a total (or a multipart answer) we cannot place it and only stream it
+		String contentRange = statusCode == HttpURLConnection.HTTP_PARTIAL ? con.getHeaderField("Content-Range") : null;
+		long[] span = ByteRange.parseContentRange(contentRange);
+		// this client gets the origin's cookies, the cached head does not keep them
+		responseStarted = true;
+		outputClient.write(HttpHead.origin(statusLine, map, contentEncoding!=null, true));
+		if(!hasBody){
+			// no framing header, a chunked end or a length would be taken for the next response
+			outputClient.write(HttpHead.tail(contentEncoding, HttpHead.NO_BODY, -1, keepAlive));
+		}else if(inflate){
+			// we only know the length of the compressed body
+			outputClient.write(HttpHead.tail(null, -1, -1, keepAlive));
+		}else{
+			outputClient.write(HttpHead.tail(contentEncoding, contentLength, contentRange, -1, keepAlive));
+		}
+		OutputStream body = !hasBody ? OutputStream.nullOutputStream()
+				: contentLength >= 0 && !inflate ? outputClient : new ChunkedOutputStream(outputClient);
+		if(datapacket==null){
+			datapacket = new byte[Relay.BUFFER_SIZE];
+		}
+		// no-store and private responses are sent but not kept
+		// neither are redirects and such without a max-age, or ones that vary on a header we do not key on
+		Freshness freshness = Freshness.parse(map, System.currentTimeMillis(), context.defaultTtl);
+		// errors, uncacheable and too big bodies are only streamed through datapacket
+		// the others are also collected, up to --max-object-size
+		boolean cacheable = !error && !noStore && freshness.isStorable(statusCode) && context.keys.covers(map)
+				&& contentLength <= context.maxObjectSize
+				&& (statusCode != HttpURLConnection.HTTP_PARTIAL || span != null && !inflate);
+		// nothing to share, the requests waiting for us should not wait for the whole body
+		if(!cacheable && leading!=null){
+			context.flights.abandon(cacheKey, leading);
+		}
+		CachedBody.Builder dataToBeCache = new CachedBody.Builder(context.maxObjectSize);
+		CacheEntry fetched = null;
+		// reading data from the server
+		// writing it to the client
+		// and saving it in cache for future reference
+		long responseSize = inflate
+				? Relay.copyInflated(serverReader, body, cacheable ? dataToBeCache : null, datapacket)
+				: Relay.copy(serverReader, body, cacheable ? dataToBeCache : null, datapacket);
+		// a chunked body can still turn out bigger than we keep
+		cacheable = cacheable && !dataToBeCache.overflowed();
+		if(body instanceof ChunkedOutputStream){
+			((ChunkedOutputStream)body).finish();
+		}
+		// if error, log it 
+		// asked for error handling
+		if(error){
+			builder.append("Error: ").append(responseStatus).append(System.lineSeparator())
+			.append(System.lineSeparator()).append(System.lineSeparator())
+			.append(System.lineSeparator()).append(System.lineSeparator());
+		}else{
+			// Write down all the info in the log
+			builder.append("Response : ").append(cacheable ? "Not Cached" : "Streamed").append(System.lineSeparator());
+			String host = url.getHost();
+			// names are looked up in the background, never on the request path
+			String address = context.resolver.hostAddress(host);
+			builder.append("Server Host Name : ").append(host).append(System.lineSeparator());
+			builder.append("Server Host Address : ").append(address).append(System.lineSeparator());
+			builder.append("Response Size : ").append(responseSize).append(System.lineSeparator());
+			builder.append("Elapsed Time : ").append(System.nanoTime()-startTime).append("ns")
+			.append(System.lineSeparator()).append(System.lineSeparator())
+			.append(System.lineSeparator()).append(System.lineSeparator());
+			if(statusCode == HttpURLConnection.HTTP_PARTIAL){
+				// only a part, it goes into the sparse copy and our whole copy stays as it is
+				if(cacheable)
+					storeSegment(getReq[1], requestComponents, cacheKey, span, dataToBeCache.build(), map, contentEncoding, freshness);
+			}else if(cacheable){
+				fetched = new CacheEntry(getReq[1], dataToBeCache.build(), HttpHead.origin(statusLine, map, contentEncoding!=null, false),
+						contentEncoding, System.nanoTime()-startTime, System.currentTimeMillis(), freshness);
+				cache.put(cacheKey, fetched);
+				if(context.disk!=null)
+					context.disk.store(cacheKey, fetched);
+			}else if(!noStore){
+				cache.remove(cacheKey);
+				if(context.disk!=null)
+					context.disk.remove(cacheKey);
+			}
+		}
+		log(builder.toString());
+		
+		outputClient.flush();
+		served(false, false, responseSize);
+		// the body was read to the end, closing it (without disconnect)
+		// puts the connection in the keep-alive cache for the next fetch
+		serverReader.close();
+		return fetched;
+	}
+	
+	// writes a cached response to the client
+	// how tells the log if it was a plain hit or a revalidated one
+	private void serveCached(CacheEntry cached, String how, StringBuilder builder, OutputStream outputClient) throws IOException{
+		CachedBody cachedData = cached.body();
+		builder.append("Response : ").append(how).append(System.lineSeparator());
+		builder.append("Response Size : ").append(cachedData.length()).append(System.lineSeparator());
+		// Elapsed time is the one we took after caching
+		// Original time is without caching
+		// You can see the improvement in RTT
+		// Improvement is there as we dont need to go over internet
+		// to fetch the same thing that we already have
+		builder.append("Elapsed Time : ").append(System.nanoTime()-startTime).append("ns").append(System.lineSeparator());
+		builder.append("Original Elapsed Time : ").append(cached.fetchTime()).append("ns")
+		.append(System.lineSeparator()).append(System.lineSeparator())
+		.append(System.lineSeparator()).append(System.lineSeparator());
+		// the origin's head is stored with the body, Content-Length and Age are added per response
+		// and browsers can cache it on their side too
+		long age = cached.age(System.currentTimeMillis());
+		long sent = cachedData.length();
+		if(rangeApplies(cached.etag(), cached.lastModified(), cached.contentEncoding())){
+			// 206 with a slice of the chunks, nothing is copied
+			ByteRange resolved = range.resolve(cachedData.length());
+			if(resolved==null){
+				writeUnsatisfiable(cachedData.length(), outputClient);
+				sent = 0;
+			}else{
+				writeGathered(partialResponse(cached.head(), cached.contentEncoding(), resolved, cachedData.length(), age,
+						cachedData.buffers(resolved.first, resolved.last)), outputClient);
+				sent = resolved.length();
+			}
+		}else if("gzip".equalsIgnoreCase(cached.contentEncoding()) && !acceptsGzip){
+			// kept compressed, this client gets it inflated and chunked
+			outputClient.write(cached.head());
+			outputClient.write(HttpHead.tail(null, -1, age, keepAlive));
+			ChunkedOutputStream chunked = new ChunkedOutputStream(outputClient);
+			if(datapacket==null){
+				datapacket = new byte[Relay.BUFFER_SIZE];
+			}
+			Relay.copy(new GZIPInputStream(cachedData.inputStream(), Relay.BUFFER_SIZE), chunked, null, datapacket);
+			chunked.finish();
+		}else{
+			// head, tail and body chunks go out in one gathering write, no copy of the body
+			ByteBuffer[] body = cachedData.buffers();
+			ByteBuffer[] response = new ByteBuffer[body.length + 2];
+			response[0] = ByteBuffer.wrap(cached.head());
+			// a kept 204 goes out as it came, without a length
+			long length = cachedData.length() == 0 && !HttpHead.hasBody("GET", HttpHead.status(cached.head()))
+					? HttpHead.NO_BODY : cachedData.length();
+			response[1] = ByteBuffer.wrap(HttpHead.tail(cached.contentEncoding(), length, age, keepAlive));
+			System.arraycopy(body, 0, response, 2, body.length);
+			writeGathered(response, outputClient);
+		}
+		log(builder.toString());
+		outputClient.flush();
+		// only a plain hit did not wait for the server, a stale one while it is refreshed neither
+		served(how.equals("Cached") || how.equals("Disk Cached") || how.equals("Stale"), true, sent);
+	}
+	
+	// writes the requested range of what we have of a body only known in parts
+	// false if some of the bytes are missing, then the range has to come from the server
+	private boolean servePartial(PartialEntry partial, StringBuilder builder, OutputStream outputClient) throws IOException{
+		if(!rangeApplies(partial.etag(), partial.lastModified(), partial.contentEncoding())){
+			return false;
+		}
+		ByteRange resolved = range.resolve(partial.totalLength());
+		ByteBuffer[] body = resolved==null ? null : partial.buffers(resolved);
+		if(resolved!=null && body==null){
+			return false;
+		}
+		long sent = resolved==null ? 0 : resolved.length();
+		builder.append("Response : Partial Cached").append(System.lineSeparator());
+		builder.append("Range : ").append(resolved==null ? "unsatisfiable" : resolved.contentRange(partial.totalLength()))
+		.append(System.lineSeparator());
+		builder.append("Response Size : ").append(sent).append(System.lineSeparator());
+		builder.append("Elapsed Time : ").append(System.nanoTime()-startTime).append("ns").append(System.lineSeparator());
+		builder.append("Original Elapsed Time : ").append(partial.fetchTime()).append("ns")
+		.append(System.lineSeparator()).append(System.lineSeparator())
+		.append(System.lineSeparator()).append(System.lineSeparator());
+		if(resolved==null){
+			writeUnsatisfiable(partial.totalLength(), outputClient);
+		}else{
+			writeGathered(partialResponse(partial.head(), partial.contentEncoding(), resolved, partial.totalLength(),
+					partial.age(System.currentTimeMillis()), body), outputClient);
+		}
+		log(builder.toString());
+		outputClient.flush();
+		served(true, true, sent);
+		return true;
+	}
+	
+	// adds the bytes of a 206 to the sparse copy of the body,
+	// once all of them are there it is moved over as the whole body
+	// two ranges stored at the same time may lose one, it is fetched again next time
+	private void storeSegment(String url, List<String> requestComponents, CacheKey cacheKey, long[] span, CachedBody segment,
+			Map<String, List<String>> headers, String contentEncoding, Freshness freshness){
+		if(segment.length() != span[1]-span[0]+1){
+			// the server sent something else than it said
+			return;
+		}
+		CacheKey partialKey = partialKey(url, requestComponents);
+		// kept as the head of the whole body, ranges are cut from it like from any other
+		byte[] head = HttpHead.origin(HttpHead.statusLine(200, "OK"), headers, contentEncoding!=null, false);
+		long now = System.currentTimeMillis();
+		CacheEntry known = cache.peek(partialKey);
+		PartialEntry partial = known instanceof PartialEntry && ((PartialEntry)known).sameBody(span[2], contentEncoding, freshness)
+				? ((PartialEntry)known).with(span[0], segment, head, now, freshness)
+				: PartialEntry.of(url, span[2], span[0], segment, head, contentEncoding, System.nanoTime()-startTime, now, freshness);
+		CachedBody whole = span[2] <= context.maxObjectSize ? partial.complete() : null;
+		if(whole==null){
+			cache.put(partialKey, partial);
+			return;
+		}
+		CacheEntry entry = new CacheEntry(url, whole, head, contentEncoding, partial.fetchTime(), now, freshness);
+		cache.put(cacheKey, entry);
+		cache.remove(partialKey);
+		if(context.disk!=null)
+			context.disk.store(cacheKey, entry);
+	}
+	
+	// sparse copies live under a key of their own, a lookup of the whole body never finds them
+	private CacheKey partialKey(String url, List<String> requestComponents){
+		return context.keys.build("RANGE", url, requestComponents);
+	}
+	
+	// true if this request's range is to be cut from a body with these validators
+	// an If-Range that does not match anymore asks for the whole new body instead
+	// and a gzip body is inflated whole for a client without gzip
+	private boolean rangeApplies(String etag, String lastModified, String contentEncoding){
+		if(range==null || contentEncoding!=null && !acceptsGzip){
+			return false;
+		}
+		if(ifRange==null){
+			return true;
+		}
+		if(ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+			// only a strong ETag can say the bytes are the same
+			return etag!=null && !etag.startsWith("W/") && ifRange.equals(etag);
+		}
+		return ifRange.equals(lastModified);
+	}
+	
+	// 206 status, the stored headers, Content-Range and the body buffers, for one gathering write
+	private ByteBuffer[] partialResponse(byte[] head, String contentEncoding, ByteRange resolved, long total, long age,
+			ByteBuffer[] body){
+		ByteBuffer[] status = HttpHead.partial(head);
+		ByteBuffer[] response = new ByteBuffer[body.length + 3];
+		response[0] = status[0];
+		response[1] = status[1];
+		response[2] = ByteBuffer.wrap(HttpHead.tail(contentEncoding, resolved.length(), resolved.contentRange(total), age, keepAlive));
+		System.arraycopy(body, 0, response, 3, body.length);
+		return response;
+	}
+	
+	// 416, the range starts after the end of the body
+	private void writeUnsatisfiable(long total, OutputStream outputClient) throws IOException{
+		outputClient.write("HTTP/1.1 416 Range Not Satisfiable\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		outputClient.write(HttpHead.tail(null, 0, "bytes */" + total, -1, keepAlive));
+	}
+	
+	// a background refresh answers nobody, it is not counted as served
+	private void served(boolean hit, boolean fromCache, long bytes){
+		if(background){
+			return;
+		}
+		context.metrics.served(hit, System.nanoTime()-startTime);
+		context.metrics.servedBytes(fromCache, bytes);
+	}
+	
+	// writes a response we only have on disk to the client
+	// the body goes from the file to the socket with transferTo, it is not copied into the heap
+	private void serveFromDisk(DiskCache.Location onDisk, StringBuilder builder, OutputStream outputClient) throws IOException{
+		builder.append("Response : Disk Cached").append(System.lineSeparator());
+		builder.append("Response Size : ").append(onDisk.length).append(System.lineSeparator());
+		builder.append("Elapsed Time : ").append(System.nanoTime()-startTime).append("ns").append(System.lineSeparator());
+		builder.append("Original Elapsed Time : ").append(onDisk.fetchTime).append("ns")
+		.append(System.lineSeparator()).append(System.lineSeparator())
+		.append(System.lineSeparator()).append(System.lineSeparator());
+		// the head has to be on the socket before the body passes our buffer
+		long age = onDisk.age(System.currentTimeMillis());
+		long offset = 0;
+		long sent = onDisk.length;
+		if(rangeApplies(onDisk.etag, onDisk.lastModified, onDisk.contentEncoding)){
+			ByteRange resolved = range.resolve(onDisk.length);
+			if(resolved==null){
+				writeUnsatisfiable(onDisk.length, outputClient);
+				outputClient.flush();
+				sent = 0;
+			}else{
+				writeGathered(partialResponse(onDisk.head, onDisk.contentEncoding, resolved, onDisk.length, age, new ByteBuffer[0]),
+						outputClient);
+				offset = resolved.first;
+				sent = resolved.length();
+			}
+		}else{
+			writeGathered(new ByteBuffer[]{ ByteBuffer.wrap(onDisk.head),
+					ByteBuffer.wrap(HttpHead.tail(onDisk.contentEncoding, onDisk.length, age, keepAlive)) },
+					outputClient);
+		}
+		WritableByteChannel channel = client.getChannel();
+		if(channel==null){
+			channel = Channels.newChannel(outputClient);
+		}
+		context.disk.transferTo(onDisk, offset, sent, channel);
+		served(true, true, sent);
+		log(builder.toString());
+	}
+	
+	// writes all buffers with one gathering write on the socket's channel
+	// anything still in the stream's buffer goes first
+	private void writeGathered(ByteBuffer[] buffers, OutputStream outputClient) throws IOException{
+		outputClient.flush();
+		SocketChannel channel = client==null ? null : client.getChannel();
+		if(channel==null){
+			WritableByteChannel out = Channels.newChannel(outputClient);
+			for (ByteBuffer buffer : buffers) {
+				while(buffer.hasRemaining()){
+					out.write(buffer);
+				}
+			}
+			return;
+		}
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		while(remaining>0){
+			remaining -= channel.write(buffers);
+		}
+	}
+	
+	// opens the connection to host:port and gives both sockets to the tunnel loop
+	private void tunnel(String target, OutputStream outputClient) throws IOException{
+		int colon = target.lastIndexOf(':');
+		int port = -1;
+		try{
+			port = Integer.parseInt(target.substring(colon+1));
+		}catch(NumberFormatException e){
+			// no port, not allowed below
+		}
+		String host = colon > 0 ? target.substring(0, colon) : target;
+		if(host.startsWith("[") && host.endsWith("]")){
+			host = host.substring(1, host.length()-1);
+		}
+		if(!context.tunnels.allows(port) || client.getChannel()==null){
+			outputClient.write(HttpHead.build("HTTP/1.1 403 Forbidden", null, 0, false));
+			outputClient.flush();
+			return;
+		}
+		SocketChannel origin = SocketChannel.open();
+		try{
+			origin.socket().connect(new InetSocketAddress(host, port), 5000);
+		}catch(IOException e){
+			origin.close();
+			outputClient.write(HttpHead.build("HTTP/1.1 502 Bad Gateway", null, 0, false));
+			outputClient.flush();
+			return;
+		}
+		// no Content-Length here, after the blank line the bytes belong to the tunnel
+		outputClient.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		outputClient.flush();
+		handedOff = true;
+		context.tunnels.open(client.getChannel(), origin, target);
+	}
+	
+	// answers /__metrics with all counters in the Prometheus text format
+	private void serveMetrics(OutputStream outputClient) throws IOException{
+		if(!context.metricsRemote && !client.getInetAddress().isLoopbackAddress()){
+			outputClient.write(HttpHead.build("HTTP/1.1 403 Forbidden", null, 0, keepAlive));
+			outputClient.flush();
+			return;
+		}
+		byte[] metrics = context.metrics.render(context).getBytes(StandardCharsets.UTF_8);
+		outputClient.write(HttpHead.build("HTTP/1.1 200 OK", "text/plain; version=0.0.4; charset=utf-8", metrics.length, keepAlive));
+		outputClient.write(metrics);
+		outputClient.flush();
+	}
+	
+	// the entry is only queued, the access log thread writes it to log.txt
+	private void log(String content){
+		context.accessLog.append(content);
+	}
+	
+}
@@ -0,0 +1,76 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and one consumer.
+ * Every slot has a sequence number telling whether it is free for the
+ * producer at a position or filled for the consumer, so producers only
+ * race on one compare-and-set of the tail.
+ */
+class RingBuffer<E> {
+	private final Object[] items;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	// only touched by the consumer
+	private long head;
+
+	/**
+	 * capacity is rounded up to a power of two.
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		items = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds the item, returns false if the buffer is full.
+	 */
+	public boolean offer(E item) {
+		long position = tail.get();
+		while (true) {
+			int index = (int) position & mask;
+			long diff = sequences.get(index) - position;
+			if (diff == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					items[index] = item;
+					// publishes the item to the consumer
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				// another producer took this slot
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Takes the oldest item or returns null, only one thread may call this.
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		int index = (int) head & mask;
+		if (sequences.get(index) != head + 1) {
+			return null;
+		}
+		E item = (E) items[index];
+		items[index] = null;
+		// frees the slot for the producers one lap later
+		sequences.lazySet(index, head + items.length);
+		head++;
+		return item;
+	}
+
+	public int capacity() {
+		return items.length;
+	}
+}
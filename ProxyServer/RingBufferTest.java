@@ -0,0 +1,73 @@
+/**
+ * Checks the ring buffer with several producers and the one consumer:
+ * nothing is lost or taken twice, every producer's items come out in
+ * the order it put them in, and a full buffer refuses instead of waiting.
+ *
+ * Run: java RingBufferTest, exits with 1 if a check failed.
+ */
+public class RingBufferTest {
+	private static final int PRODUCERS = 4;
+	private static final int ITEMS = 2_000_000;
+
+	public static void main(String[] args) throws Exception {
+		bounded();
+		producers();
+		Checks.exit();
+	}
+
+	private static void bounded() {
+		RingBuffer<Integer> buffer = new RingBuffer<>(5);
+		Checks.check(buffer.capacity() == 8, "capacity is rounded up to a power of two");
+		boolean offered = true;
+		for (int i = 0; i < 8; i++) {
+			offered &= buffer.offer(i);
+		}
+		Checks.check(offered && !buffer.offer(8), "a full buffer refuses the next item");
+		Checks.check(buffer.poll() == 0 && buffer.offer(8), "a taken slot is free again");
+		boolean ordered = true;
+		for (int i = 1; i <= 8; i++) {
+			ordered &= buffer.poll() == i;
+		}
+		Checks.check(ordered && buffer.poll() == null, "items come out in order, then null");
+	}
+
+	private static void producers() throws InterruptedException {
+		RingBuffer<long[]> buffer = new RingBuffer<>(1024);
+		Thread[] threads = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			int producer = p;
+			threads[p] = new Thread(() -> {
+				for (int i = 0; i < ITEMS; i++) {
+					long[] item = { producer, i };
+					while (!buffer.offer(item)) {
+						// full, let the consumer run
+						Thread.yield();
+					}
+				}
+			});
+			threads[p].start();
+		}
+		int[] next = new int[PRODUCERS];
+		long taken = 0;
+		boolean ordered = true;
+		while (taken < (long) PRODUCERS * ITEMS) {
+			long[] item = buffer.poll();
+			if (item == null) {
+				Thread.yield();
+				continue;
+			}
+			ordered &= item[1] == next[(int) item[0]];
+			next[(int) item[0]] = (int) item[1] + 1;
+			taken++;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		boolean all = true;
+		for (int count : next) {
+			all &= count == ITEMS;
+		}
+		Checks.check(ordered, "every producer's items are taken in its order");
+		Checks.check(all && buffer.poll() == null, "all " + PRODUCERS + " x " + ITEMS + " items are taken once");
+	}
+}
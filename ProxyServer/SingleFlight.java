@@ -0,0 +1,93 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Makes sure only one request at a time goes to the server for the same key.
+ * The first caller leads the flight, everybody else waits for its result.
+ */
+class SingleFlight<K, V> {
+	private final ConcurrentHashMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+
+	/**
+	 * Starts a flight for the key, or joins the one already running.
+	 * A leader has to call finish when it is done, whatever happens.
+	 */
+	public Flight<V> begin(K key) {
+		Flight<V> mine = new Flight<>(true);
+		Flight<V> running = flights.putIfAbsent(key, mine);
+		if (running == null) {
+			return mine;
+		}
+		return new Flight<>(running.result);
+	}
+
+	/**
+	 * Hands the result (null if there is nothing to share) to the waiting
+	 * callers and lets the next caller start a new flight.
+	 */
+	public void finish(K key, Flight<V> flight, V result) {
+		flight.result.complete(result);
+		flights.remove(key, flight);
+	}
+
+	/**
+	 * Lets the waiting callers go before the leader is done: the response
+	 * head already says it will not be shared, they should not wait for its
+	 * body just to get null. The next caller starts a new flight.
+	 * The leader still calls finish, that then does nothing.
+	 */
+	public void abandon(K key, Flight<V> flight) {
+		flights.remove(key, flight);
+		flight.result.complete(null);
+	}
+
+	/**
+	 * True if a caller of begin would join a flight for the key right now.
+	 */
+	public boolean running(K key) {
+		return flights.containsKey(key);
+	}
+
+	/**
+	 * Number of keys being fetched right now.
+	 */
+	public int size() {
+		return flights.size();
+	}
+
+	static class Flight<V> {
+		private final boolean leader;
+		private final CompletableFuture<V> result;
+
+		private Flight(boolean leader) {
+			this.leader = leader;
+			this.result = new CompletableFuture<>();
+		}
+
+		private Flight(CompletableFuture<V> result) {
+			this.leader = false;
+			this.result = result;
+		}
+
+		public boolean isLeader() {
+			return leader;
+		}
+
+		/**
+		 * Waits for the leader's result, null if it failed or took too long.
+		 */
+		public V await(long timeoutMillis) {
+			try {
+				return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException | TimeoutException e) {
+				return null;
+			}
+		}
+	}
+}
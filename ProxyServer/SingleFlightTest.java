@@ -0,0 +1,47 @@
+/**
+ * Checks that waiters get the leader's result, and that an abandoned
+ * flight lets them go right away instead of after the whole download.
+ *
+ * Run: java SingleFlightTest, exits with 1 if a check failed.
+ */
+public class SingleFlightTest {
+	public static void main(String[] args) throws Exception {
+		shared();
+		abandoned();
+		Checks.exit();
+	}
+
+	private static void shared() {
+		SingleFlight<String, String> flights = new SingleFlight<>();
+		SingleFlight.Flight<String> leader = flights.begin("a");
+		SingleFlight.Flight<String> waiter = flights.begin("a");
+		Checks.check(leader.isLeader() && !waiter.isLeader(), "second caller joins the flight");
+		flights.finish("a", leader, "body");
+		Checks.check("body".equals(waiter.await(1000)), "waiter gets the leader's result");
+		Checks.check(flights.size() == 0 && flights.begin("a").isLeader(), "next caller starts a new flight");
+	}
+
+	private static void abandoned() throws Exception {
+		SingleFlight<String, String> flights = new SingleFlight<>();
+		SingleFlight.Flight<String> leader = flights.begin("b");
+		SingleFlight.Flight<String> waiter = flights.begin("b");
+		long[] waited = new long[1];
+		Thread thread = new Thread(() -> {
+			long start = System.nanoTime();
+			waiter.await(5000);
+			waited[0] = (System.nanoTime() - start) / 1_000_000;
+		});
+		thread.start();
+		Thread.sleep(50);
+		// the head said no-store, the body is still on its way
+		flights.abandon("b", leader);
+		thread.join();
+		Checks.check(waited[0] < 1000, "waiter is let go when the flight is abandoned, waited " + waited[0] + "ms");
+		SingleFlight.Flight<String> next = flights.begin("b");
+		Checks.check(next.isLeader(), "caller after abandon leads its own flight");
+		// the old leader finishing late must not end the new flight
+		flights.finish("b", leader, null);
+		Checks.check(!flights.begin("b").isLeader(), "late finish leaves the new flight alone");
+		flights.finish("b", next, "body");
+	}
+}
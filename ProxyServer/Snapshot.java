@@ -0,0 +1,307 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The hot part of the memory cache saved to one file, so a restarted proxy
+ * does not send all its clients to the origins at once.
+ * --snapshot-file names it. It is written every --snapshot-interval seconds
+ * (0 for only at shutdown) and when the proxy stops, the most hit entries
+ * first, up to --snapshot-size bytes of them.
+ * --snapshot-mode=full keeps the bodies in the file, keys only keeps the
+ * keys and reads the bodies back from the disk tier.
+ * On startup the file is memory mapped and the records are read from the
+ * mapped buffers. With --snapshot-revalidate the restored entries that
+ * expired meanwhile are revalidated on --snapshot-threads threads.
+ */
+class Snapshot {
+	// changes with the record layout, a file of another layout is ignored
+	private static final int MAGIC = 0x50524F54;
+	private static final int KEYS = 0;
+	private static final int FULL = 1;
+	// magic, mode, record count
+	private static final int FILE_HEADER = 4 + 4 + 4;
+	// record length, key, hits
+	private static final int KEY_RECORD = 4 + 16 + 8;
+
+	private final Path file;
+	private final boolean full;
+	private final long maxBytes;
+	private final long interval;
+	private final boolean revalidate;
+	private final int threads;
+
+	public Snapshot(Path file, boolean full, long maxBytes, long interval, boolean revalidate, int threads) {
+		this.file = file;
+		this.full = full;
+		this.maxBytes = maxBytes;
+		this.interval = interval;
+		this.revalidate = revalidate;
+		this.threads = threads;
+	}
+
+	/**
+	 * Returns null unless --snapshot-file is given.
+	 */
+	public static Snapshot fromConfig(ProxyConfig config, long cacheSize, DiskCache disk) {
+		String path = config.get("snapshot-file", null);
+		if (path == null) {
+			return null;
+		}
+		boolean full = !config.get("snapshot-mode", "full").equalsIgnoreCase("keys");
+		if (!full && disk == null) {
+			System.err.println("--snapshot-mode=keys needs --disk-cache-dir, the snapshot keeps the bodies");
+			full = true;
+		}
+		return new Snapshot(Paths.get(path), full, config.getBytes("snapshot-size", cacheSize),
+				config.getInt("snapshot-interval", 300) * 1000L, config.getBoolean("snapshot-revalidate", false),
+				config.getInt("snapshot-threads", 8));
+	}
+
+	/**
+	 * Saves every --snapshot-interval and once more when the proxy stops.
+	 */
+	public void start(ProxyContext context) {
+		if (interval > 0) {
+			ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "snapshot");
+				thread.setDaemon(true);
+				return thread;
+			});
+			timer.scheduleWithFixedDelay(() -> saveQuietly(context), interval, interval, TimeUnit.MILLISECONDS);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> saveQuietly(context)));
+	}
+
+	private void saveQuietly(ProxyContext context) {
+		try {
+			save(context);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the hot set to a temporary file and moves it over the last
+	 * snapshot, a crash while saving leaves the old one as it was.
+	 * Returns the number of entries saved.
+	 */
+	public synchronized int save(ProxyContext context) throws IOException {
+		List<Map.Entry<CacheKey, CacheEntry>> entries = new ArrayList<>();
+		context.cache.forEach((key, entry) -> {
+			// sparse copies are not worth a restart
+			if (!(entry instanceof PartialEntry)) {
+				entries.add(new AbstractMap.SimpleImmutableEntry<>(key, entry));
+			}
+		});
+		// hottest first, that is the order the budget is filled in
+		entries.sort(Comparator.comparingLong((Map.Entry<CacheKey, CacheEntry> e) -> e.getValue().hits()).reversed());
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		int count = 0;
+		long bytes = 0;
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.position(FILE_HEADER);
+			for (Map.Entry<CacheKey, CacheEntry> e : entries) {
+				CacheEntry entry = e.getValue();
+				if (bytes + entry.weight() > maxBytes) {
+					continue;
+				}
+				// only keys the disk tier can give the body back for
+				if (!full && context.disk.get(e.getKey()) == null) {
+					continue;
+				}
+				ByteBuffer[] record = full ? fullRecord(e.getKey(), entry) : new ByteBuffer[] { keyRecord(e.getKey(), entry, KEY_RECORD) };
+				long remaining = 0;
+				for (ByteBuffer buffer : record) {
+					remaining += buffer.remaining();
+				}
+				while (remaining > 0) {
+					remaining -= channel.write(record);
+				}
+				bytes += entry.weight();
+				count++;
+			}
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+			header.putInt(MAGIC).putInt(full ? FULL : KEYS).putInt(count).flip();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(false);
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return count;
+	}
+
+	/**
+	 * Puts the saved hot set back into the cache, coldest first so the
+	 * hottest are the most recent for the eviction policy.
+	 * Returns the number of entries restored, 0 without a snapshot.
+	 */
+	public int restore(ProxyContext context) throws IOException {
+		if (!Files.exists(file)) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		List<Map.Entry<CacheKey, CacheEntry>> restored = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedReader reader = new MappedReader(channel);
+			if (channel.size() < FILE_HEADER) {
+				return 0;
+			}
+			ByteBuffer header = reader.at(0, FILE_HEADER);
+			int magic = header.getInt();
+			int mode = header.getInt();
+			int count = header.getInt();
+			if (magic != MAGIC || (mode != FULL && mode != KEYS)) {
+				System.out.println("Snapshot " + file + " is of another version, starting cold");
+				return 0;
+			}
+			long position = FILE_HEADER;
+			for (int i = 0; i < count && position + 4 <= channel.size(); i++) {
+				int length = reader.at(position, 4).getInt();
+				if (length < KEY_RECORD || position + length > channel.size()) {
+					break;
+				}
+				ByteBuffer record = reader.at(position, length);
+				record.getInt();
+				CacheKey key = new CacheKey(record.getLong(), record.getLong());
+				record.getLong();
+				CacheEntry entry;
+				if (mode == FULL) {
+					try {
+						entry = readEntry(record);
+					} catch (RuntimeException e) {
+						// a half written or damaged file, what came before is still good
+						System.err.println("Snapshot " + file + " is broken at record " + i + " (" + e + "), restoring "
+								+ restored.size() + " entries");
+						break;
+					}
+				} else {
+					entry = load(context.disk, key);
+				}
+				if (entry != null) {
+					restored.add(new AbstractMap.SimpleImmutableEntry<>(key, entry));
+				}
+				position += length;
+			}
+		}
+		Collections.reverse(restored);
+		for (Map.Entry<CacheKey, CacheEntry> e : restored) {
+			context.cache.put(e.getKey(), e.getValue());
+		}
+		System.out.println("Restored " + restored.size() + " entries from " + file + " in "
+				+ (System.nanoTime() - start) / 1000000 + "ms");
+		if (revalidate) {
+			revalidate(context, restored);
+		}
+		return restored.size();
+	}
+
+	// the entry of a saved key from the disk cache, null when the disk no longer has it
+	private static CacheEntry load(DiskCache disk, CacheKey key) {
+		DiskCache.Location onDisk = disk == null ? null : disk.get(key);
+		if (onDisk == null) {
+			return null;
+		}
+		try {
+			return disk.load(onDisk);
+		} catch (IOException e) {
+			// its segment was evicted or is unreadable, the other keys may still be there
+			return null;
+		}
+	}
+
+		// sends conditional requests for what expired while we were down, in the background
+	private void revalidate(ProxyContext context, List<Map.Entry<CacheKey, CacheEntry>> restored) {
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "snapshot-revalidate-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		long now = System.currentTimeMillis();
+		int queued = 0;
+		for (Map.Entry<CacheKey, CacheEntry> e : restored) {
+			CacheEntry entry = e.getValue();
+			// without validators it would be a whole new download, that waits for a client to ask
+			if (entry.isFresh(now) || entry.url() == null || !entry.hasValidators()) {
+				continue;
+			}
+			String[] requestLine = { "GET", entry.url(), "HTTP/1.1" };
+			List<String> lines = Collections.singletonList(String.join(" ", requestLine));
+			// we do not have the cookies of the client that asked, only entries without
+			// vary header values can be asked for again
+			if (!context.keys.build("GET", entry.url(), lines).equals(e.getKey())) {
+				continue;
+			}
+			pool.execute(() -> new Request(null, context, System.nanoTime()).refresh(lines, requestLine, e.getKey(), entry));
+			queued++;
+		}
+		pool.shutdown();
+		System.out.println("Revalidating " + queued + " restored entries on " + threads + " threads");
+	}
+
+	private static ByteBuffer keyRecord(CacheKey key, CacheEntry entry, int length) {
+		ByteBuffer record = ByteBuffer.allocate(KEY_RECORD);
+		record.putInt(length).putLong(key.high()).putLong(key.low()).putLong(entry.hits()).flip();
+		return record;
+	}
+
+	// key record, then what the entry needs, then the body chunks as they are
+	private static ByteBuffer[] fullRecord(CacheKey key, CacheEntry entry) {
+		byte[][] strings = { Records.utf(entry.url()), Records.utf(entry.etag()), Records.utf(entry.lastModified()),
+				Records.utf(entry.contentEncoding()) };
+		byte[] head = entry.head();
+		int metaLength = 8 * 5 + 4 + head.length + 4;
+		for (byte[] s : strings) {
+			metaLength += Records.length(s);
+		}
+		int bodyLength = entry.body().length();
+		ByteBuffer meta = ByteBuffer.allocate(metaLength);
+		meta.putLong(entry.fetchTime()).putLong(entry.storedAt()).putLong(entry.expiresAt())
+		.putLong(entry.staleWhileRevalidate()).putLong(entry.staleIfError());
+		for (byte[] s : strings) {
+			Records.putString(meta, s);
+		}
+		meta.putInt(head.length).put(head).putInt(bodyLength).flip();
+		ByteBuffer[] body = entry.body().buffers();
+		ByteBuffer[] record = new ByteBuffer[body.length + 2];
+		record[0] = keyRecord(key, entry, KEY_RECORD + metaLength + bodyLength);
+		record[1] = meta;
+		System.arraycopy(body, 0, record, 2, body.length);
+		return record;
+	}
+
+	private static CacheEntry readEntry(ByteBuffer record) {
+		long fetchTime = record.getLong();
+		long storedAt = record.getLong();
+		long expiresAt = record.getLong();
+		long staleWhileRevalidate = record.getLong();
+		long staleIfError = record.getLong();
+		String url = Records.string(record);
+		String etag = Records.string(record);
+		String lastModified = Records.string(record);
+		String contentEncoding = Records.string(record);
+		byte[] head = Records.bytes(record);
+		byte[] body = Records.bytes(record);
+		return new CacheEntry(url, CachedBody.of(body), head, contentEncoding, fetchTime, storedAt,
+				new Freshness(true, expiresAt, etag, lastModified, staleWhileRevalidate, staleIfError));
+	}
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Saves a cache to a snapshot and restores it into a new one, in both
+ * modes, and checks the entries come back as they were saved, and that
+ * a damaged snapshot or disk segment only costs the entries it holds.
+ * Like the proxy it writes log.txt into the working directory.
+ *
+ * Run: java SnapshotTest, exits with 1 if a check failed.
+ */
+public class SnapshotTest {
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("snapshot-test");
+		try {
+			fullRoundTrip(dir);
+			budget(dir);
+			keysRoundTrip(dir);
+			brokenRecord(dir);
+			unreadableSegment(dir);
+		} finally {
+			Checks.delete(dir);
+		}
+		Checks.exit();
+	}
+
+	private static void fullRoundTrip(Path dir) throws Exception {
+		String file = "--snapshot-file=" + dir.resolve("full.snap");
+		ProxyContext before = new ProxyContext(ProxyConfig.fromArgs(new String[] { file }));
+		char[] path = new char[40_000];
+		Arrays.fill(path, 'p');
+		CacheEntry plain = entry("http://example.com/plain", 1000, "\"a\"", null);
+		CacheEntry gzip = entry("http://example.com/" + new String(path), 5000, null, "gzip");
+		CacheEntry noUrl = entry(null, 10, null, null);
+		before.cache.put(new CacheKey(1, 1), plain);
+		before.cache.put(new CacheKey(2, 2), gzip);
+		before.cache.put(new CacheKey(3, 3), noUrl);
+		Checks.check(before.snapshot.save(before) == 3, "three entries saved");
+
+		ProxyContext after = new ProxyContext(ProxyConfig.fromArgs(new String[] { file }));
+		Checks.check(after.snapshot.restore(after) == 3, "three entries restored");
+		same(plain, after.cache.peek(new CacheKey(1, 1)), "plain entry");
+		same(gzip, after.cache.peek(new CacheKey(2, 2)), "gzip entry with a url over 32k");
+		same(noUrl, after.cache.peek(new CacheKey(3, 3)), "entry without url");
+	}
+
+	private static void budget(Path dir) throws Exception {
+		String file = "--snapshot-file=" + dir.resolve("budget.snap");
+		ProxyContext before = new ProxyContext(ProxyConfig.fromArgs(new String[] { file, "--snapshot-size=3k" }));
+		CacheEntry hot = entry("http://example.com/hot", 2000, null, null);
+		CacheEntry cold = entry("http://example.com/cold", 2000, null, null);
+		hot.hit();
+		hot.hit();
+		before.cache.put(new CacheKey(4, 4), cold);
+		before.cache.put(new CacheKey(5, 5), hot);
+		Checks.check(before.snapshot.save(before) == 1, "only one entry fits the budget");
+		ProxyContext after = new ProxyContext(ProxyConfig.fromArgs(new String[] { file }));
+		after.snapshot.restore(after);
+		Checks.check(after.cache.peek(new CacheKey(5, 5)) != null && after.cache.peek(new CacheKey(4, 4)) == null,
+				"the hotter entry is the one kept");
+	}
+
+	private static void keysRoundTrip(Path dir) throws Exception {
+		String[] args = { "--snapshot-file=" + dir.resolve("keys.snap"), "--snapshot-mode=keys",
+				"--disk-cache-dir=" + dir.resolve("disk") };
+		ProxyContext before = new ProxyContext(ProxyConfig.fromArgs(args));
+		CacheEntry onDisk = entry("http://example.com/disk", 3000, "\"d\"", null);
+		CacheEntry memoryOnly = entry("http://example.com/memory", 3000, null, null);
+		before.cache.put(new CacheKey(6, 6), onDisk);
+		before.cache.put(new CacheKey(7, 7), memoryOnly);
+		before.disk.store(new CacheKey(6, 6), onDisk);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (before.disk.get(new CacheKey(6, 6)) == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Checks.check(before.snapshot.save(before) == 1, "only the key the disk has is saved");
+		before.disk.close();
+
+		ProxyContext after = new ProxyContext(ProxyConfig.fromArgs(args));
+		Checks.check(after.snapshot.restore(after) == 1, "one entry restored from the disk");
+		same(onDisk, after.cache.peek(new CacheKey(6, 6)), "entry read back from the disk");
+		after.disk.close();
+	}
+
+	private static void brokenRecord(Path dir) throws Exception {
+		Path snapshot = dir.resolve("broken.snap");
+		String file = "--snapshot-file=" + snapshot;
+		ProxyContext before = new ProxyContext(ProxyConfig.fromArgs(new String[] { file }));
+		CacheEntry hot = entry("http://example.com/hot", 100, null, null);
+		hot.hit();
+		hot.hit();
+		CacheEntry warm = entry("http://example.com/warm", 100, null, null);
+		warm.hit();
+		before.cache.put(new CacheKey(10, 10), hot);
+		before.cache.put(new CacheKey(11, 11), warm);
+		before.cache.put(new CacheKey(12, 12), entry("http://example.com/cold", 100, null, null));
+		before.snapshot.save(before);
+
+		// hottest first, the third record is the cold one, its url length is made huge
+		try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long position = 12;
+			for (int i = 0; i < 2; i++) {
+				ByteBuffer length = ByteBuffer.allocate(4);
+				channel.read(length, position);
+				position += length.flip().getInt();
+			}
+			// key record, then five longs before the url
+			channel.write(ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE - 8).flip(), position + 4 + 16 + 8 + 40);
+		}
+		ProxyContext after = new ProxyContext(ProxyConfig.fromArgs(new String[] { file }));
+		int restored = -1;
+		try {
+			restored = after.snapshot.restore(after);
+		} catch (RuntimeException e) {
+			Checks.check(false, "a broken record must not fail the restore: " + e);
+		}
+		Checks.check(restored == 2, "entries before the broken record are restored, got " + restored);
+		same(hot, after.cache.peek(new CacheKey(10, 10)), "hot entry before the broken record");
+		Checks.check(after.cache.peek(new CacheKey(12, 12)) == null, "broken record is not restored");
+	}
+
+	private static void unreadableSegment(Path dir) throws Exception {
+		// every entry gets a segment of its own
+		String[] args = { "--snapshot-file=" + dir.resolve("segments.snap"), "--snapshot-mode=keys",
+				"--disk-cache-dir=" + dir.resolve("segments"), "--disk-segment-size=2k" };
+		ProxyContext before = new ProxyContext(ProxyConfig.fromArgs(args));
+		CacheKey lost = new CacheKey(13, 13);
+		CacheKey kept = new CacheKey(14, 14);
+		before.cache.put(lost, entry("http://example.com/lost", 3000, null, null));
+		before.cache.put(kept, entry("http://example.com/kept", 3000, null, null));
+		before.disk.store(lost, before.cache.peek(lost));
+		before.disk.store(kept, before.cache.peek(kept));
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((before.disk.get(lost) == null || before.disk.get(kept) == null) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Checks.check(before.snapshot.save(before) == 2, "both keys are saved");
+		before.disk.close();
+
+		ProxyContext after = new ProxyContext(ProxyConfig.fromArgs(args));
+		DiskCache.Location location = after.disk.get(lost);
+		Checks.check(location != null && location.segment != after.disk.get(kept).segment, "keys are in two segments");
+		// the body of one is cut off after the disk cache indexed it
+		Path segment = dir.resolve("segments").resolve(String.format("segment-%08d.dat", location.segment));
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.truncate(location.offset + 10);
+		}
+		int restored = -1;
+		try {
+			restored = after.snapshot.restore(after);
+		} catch (IOException e) {
+			Checks.check(false, "an unreadable segment must not fail the restore: " + e);
+		}
+		Checks.check(restored == 1, "the key with a readable segment is restored, got " + restored);
+		Checks.check(after.cache.peek(kept) != null && after.cache.peek(lost) == null, "only the readable entry is back");
+		after.disk.close();
+	}
+
+	private static CacheEntry entry(String url, int length, String etag, String contentEncoding) {
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; i++) {
+			body[i] = (byte) (i * 31);
+		}
+		byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		long now = System.currentTimeMillis();
+		return new CacheEntry(url, CachedBody.of(body), head, contentEncoding, 12345, now - 1000,
+				new Freshness(true, now + 60_000, etag, "Sat, 04 Nov 2023 22:13:20 GMT", 10_000, -1));
+	}
+
+	private static void same(CacheEntry saved, CacheEntry restored, String what) throws Exception {
+		boolean same = restored != null
+				&& equal(saved.url(), restored.url())
+				&& Arrays.equals(saved.body().inputStream().readAllBytes(), restored.body().inputStream().readAllBytes())
+				&& Arrays.equals(saved.head(), restored.head())
+				&& equal(saved.etag(), restored.etag())
+				&& equal(saved.lastModified(), restored.lastModified())
+				&& equal(saved.contentEncoding(), restored.contentEncoding())
+				&& saved.fetchTime() == restored.fetchTime()
+				&& saved.storedAt() == restored.storedAt()
+				&& saved.expiresAt() == restored.expiresAt()
+				&& saved.staleWhileRevalidate() == restored.staleWhileRevalidate()
+				&& saved.staleIfError() == restored.staleIfError();
+		Checks.check(same, what);
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,116 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Window TinyLFU eviction.
+ * New keys land in a small LRU window. Keys pushed out of the window stay
+ * in the main LRU area only if they were asked for more often than the
+ * main area's eldest key, otherwise they are dropped.
+ * This keeps one-off downloads from flushing popular pages out.
+ */
+class TinyLfuPolicy<K> implements EvictionPolicy<K> {
+	// window gets 1% of the budget, like in the W-TinyLFU paper
+	private static final int WINDOW_PERCENT = 1;
+	// guess of an average object size, only used to size the sketch
+	private static final long AVERAGE_OBJECT = 16 * 1024;
+
+	private final LinkedHashMap<K, Long> window = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<K, Long> main = new LinkedHashMap<>(16, 0.75f, true);
+	// keys that came over from the window on the last add, not judged yet
+	private final ArrayDeque<K> candidates = new ArrayDeque<>();
+	private final FrequencySketch sketch;
+	private final long windowMax;
+	private long windowWeight;
+
+	public TinyLfuPolicy(long maxBytes) {
+		windowMax = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+		long keys = Math.min(1 << 20, Math.max(1024, maxBytes / AVERAGE_OBJECT));
+		sketch = new FrequencySketch((int) keys);
+	}
+
+	@Override
+	public void onAccess(K key, boolean hit) {
+		// misses count too, that is what lets a popular new key get in
+		sketch.increment(key);
+		if (hit && window.get(key) == null) {
+			main.get(key);
+		}
+	}
+
+	@Override
+	public void onAdd(K key, long weight) {
+		// candidates left from earlier adds were not judged because
+		// the cache had room for them, so they are simply in now
+		candidates.clear();
+		window.put(key, weight);
+		windowWeight += weight;
+		// window overflow moves on to the main area, but only as a candidate
+		// it has to beat the main area's eldest key once the cache is full
+		while (windowWeight > windowMax && window.size() > 1) {
+			Map.Entry<K, Long> eldest = eldest(window);
+			window.remove(eldest.getKey());
+			windowWeight -= eldest.getValue();
+			main.put(eldest.getKey(), eldest.getValue());
+			candidates.add(eldest.getKey());
+		}
+	}
+
+	@Override
+	public void onRemove(K key) {
+		Long weight = window.remove(key);
+		if (weight != null) {
+			windowWeight -= weight;
+		} else {
+			main.remove(key);
+		}
+	}
+
+	@Override
+	public K evict() {
+		while (!candidates.isEmpty()) {
+			K candidate = candidates.poll();
+			if (!main.containsKey(candidate)) {
+				// already gone
+				continue;
+			}
+			K victim = eldestKey(candidate);
+			if (victim == null || sketch.frequency(candidate) <= sketch.frequency(victim)) {
+				main.remove(candidate);
+				return candidate;
+			}
+			main.remove(victim);
+			return victim;
+		}
+		if (!main.isEmpty()) {
+			K victim = eldest(main).getKey();
+			main.remove(victim);
+			return victim;
+		}
+		if (!window.isEmpty()) {
+			Map.Entry<K, Long> victim = eldest(window);
+			window.remove(victim.getKey());
+			windowWeight -= victim.getValue();
+			return victim.getKey();
+		}
+		return null;
+	}
+
+	// eldest key of the main area that is not the candidate itself
+	private K eldestKey(K candidate) {
+		for (K key : main.keySet()) {
+			if (!key.equals(candidate)) {
+				return key;
+			}
+		}
+		return null;
+	}
+
+	private static <K> Map.Entry<K, Long> eldest(LinkedHashMap<K, Long> map) {
+		Iterator<Map.Entry<K, Long>> it = map.entrySet().iterator();
+		Map.Entry<K, Long> e = it.next();
+		// copy it, the map entry is gone once we remove the key
+		return Map.entry(e.getKey(), e.getValue());
+	}
+}
@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relays CONNECT tunnels (HTTPS through the proxy) between the client and
+ * the origin on one selector thread, so an open tunnel holds no worker.
+ * Bytes go through pooled direct buffers, the kernel copies them straight
+ * in and out and they never pass through the Java heap.
+ * A tunnel ends when both sides closed or after --tunnel-idle-timeout
+ * without any bytes in either direction.
+ */
+class Tunnels implements Runnable {
+	private final int bufferSize;
+	private final long idleTimeout;
+	private final Set<Integer> ports = new HashSet<>();
+	private final AccessLog accessLog;
+	private final ProxyMetrics metrics;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Tunnel> pending = new ConcurrentLinkedQueue<>();
+	// only touched by the loop thread
+	private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+	private final Set<Tunnel> open = new HashSet<>();
+	private final AtomicLong active = new AtomicLong();
+	private final AtomicLong bytesUp = new AtomicLong();
+	private final AtomicLong bytesDown = new AtomicLong();
+
+	public Tunnels(int bufferSize, long idleTimeout, String ports, AccessLog accessLog, ProxyMetrics metrics)
+			throws IOException {
+		this.bufferSize = bufferSize;
+		this.idleTimeout = idleTimeout;
+		for (String port : ports.split(",")) {
+			if (!port.trim().isEmpty()) {
+				this.ports.add(Integer.parseInt(port.trim()));
+			}
+		}
+		this.accessLog = accessLog;
+		this.metrics = metrics;
+		this.selector = Selector.open();
+		Thread thread = new Thread(this, "tunnel-loop");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static Tunnels fromConfig(ProxyConfig config, AccessLog accessLog, ProxyMetrics metrics) throws IOException {
+		return new Tunnels((int) config.getBytes("tunnel-buffer", 16 * 1024),
+				config.getInt("tunnel-idle-timeout", 60) * 1000L,
+				config.get("tunnel-ports", "443"), accessLog, metrics);
+	}
+
+	/**
+	 * Only these ports may be tunneled, otherwise the proxy relays anything
+	 * to anywhere. --tunnel-ports is a comma list, 443 by default.
+	 */
+	public boolean allows(int port) {
+		return ports.contains(port);
+	}
+
+	/**
+	 * Takes over both channels, they are closed when the tunnel ends.
+	 * The client has already been told the tunnel is established.
+	 */
+	public void open(SocketChannel client, SocketChannel origin, String target) {
+		active.incrementAndGet();
+		pending.add(new Tunnel(client, origin, target));
+		selector.wakeup();
+	}
+
+	public long active() {
+		return active.get();
+	}
+
+	public long bytesUp() {
+		return bytesUp.get();
+	}
+
+	public long bytesDown() {
+		return bytesDown.get();
+	}
+
+	// bytes going one way, buffer is always in fill mode between pumps
+	private static class Direction {
+		final SocketChannel from;
+		final SocketChannel to;
+		ByteBuffer buffer;
+		long bytes;
+		boolean eof;
+		boolean shut;
+
+		Direction(SocketChannel from, SocketChannel to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	private class Tunnel {
+		final String target;
+		final Direction up;
+		final Direction down;
+		final long opened = System.nanoTime();
+		SelectionKey clientKey;
+		SelectionKey originKey;
+		long lastActive = System.currentTimeMillis();
+		boolean closed;
+
+		Tunnel(SocketChannel client, SocketChannel origin, String target) {
+			this.target = target;
+			this.up = new Direction(client, origin);
+			this.down = new Direction(origin, client);
+		}
+
+		void start() throws IOException {
+			up.buffer = buffer();
+			down.buffer = buffer();
+			up.from.configureBlocking(false);
+			down.from.configureBlocking(false);
+			clientKey = up.from.register(selector, 0, this);
+			originKey = down.from.register(selector, 0, this);
+			open.add(this);
+			pump();
+		}
+
+		// moves whatever can be moved without blocking, then says what to wait for
+		void pump() throws IOException {
+			long before = up.bytes + down.bytes;
+			pump(up);
+			pump(down);
+			if (up.bytes + down.bytes != before) {
+				lastActive = System.currentTimeMillis();
+			}
+			if (up.shut && down.shut) {
+				close();
+				return;
+			}
+			clientKey.interestOps(interest(up, down));
+			originKey.interestOps(interest(down, up));
+		}
+
+		// a channel reads for the direction it starts and writes for the one it ends
+		private int interest(Direction reading, Direction writing) {
+			int ops = 0;
+			if (!reading.eof && reading.buffer.hasRemaining()) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (writing.buffer.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			return ops;
+		}
+
+		private void pump(Direction direction) throws IOException {
+			while (true) {
+				ByteBuffer buffer = direction.buffer;
+				if (buffer.position() > 0) {
+					buffer.flip();
+					direction.to.write(buffer);
+					buffer.compact();
+					if (buffer.position() > 0) {
+						return;
+					}
+				}
+				if (direction.eof) {
+					// everything is written, pass the close on to the other side
+					if (!direction.shut) {
+						direction.shut = true;
+						direction.to.shutdownOutput();
+					}
+					return;
+				}
+				int read = direction.from.read(buffer);
+				if (read == -1) {
+					direction.eof = true;
+				} else if (read == 0) {
+					return;
+				} else {
+					direction.bytes += read;
+					(direction == up ? bytesUp : bytesDown).addAndGet(read);
+				}
+			}
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			open.remove(this);
+			if (clientKey != null) {
+				clientKey.cancel();
+			}
+			if (originKey != null) {
+				originKey.cancel();
+			}
+			try {
+				up.from.close();
+			} catch (IOException e) {
+				// already gone
+			}
+			try {
+				down.from.close();
+			} catch (IOException e) {
+				// already gone
+			}
+			recycle(up.buffer);
+			recycle(down.buffer);
+			active.decrementAndGet();
+			metrics.connectionClosed();
+			StringBuilder builder = new StringBuilder();
+			builder.append("Tunnel : ").append(target).append(System.lineSeparator())
+			.append("Bytes Sent : ").append(up.bytes).append(System.lineSeparator())
+			.append("Bytes Received : ").append(down.bytes).append(System.lineSeparator())
+			.append("Elapsed Time : ").append(System.nanoTime() - opened).append("ns")
+			.append(System.lineSeparator()).append(System.lineSeparator())
+			.append(System.lineSeparator()).append(System.lineSeparator());
+			accessLog.append(builder.toString());
+		}
+	}
+
+	@Override
+	public void run() {
+		long lastSweep = System.currentTimeMillis();
+		while (true) {
+			try {
+				selector.select(1000);
+				Tunnel tunnel;
+				while ((tunnel = pending.poll()) != null) {
+					try {
+						tunnel.start();
+					} catch (IOException e) {
+						tunnel.close();
+					}
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Tunnel ready = (Tunnel) key.attachment();
+					if (!key.isValid() || ready.closed) {
+						continue;
+					}
+					try {
+						ready.pump();
+					} catch (IOException e) {
+						// a reset on either side ends the whole tunnel
+						ready.close();
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= 1000) {
+					for (Tunnel idle : open.toArray(new Tunnel[0])) {
+						if (now - idle.lastActive > idleTimeout) {
+							idle.close();
+						}
+					}
+					lastSweep = now;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private ByteBuffer buffer() {
+		ByteBuffer buffer = freeBuffers.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	private void recycle(ByteBuffer buffer) {
+		if (buffer != null) {
+			buffer.clear();
+			freeBuffers.push(buffer);
+		}
+	}
+}
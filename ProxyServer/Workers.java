@@ -0,0 +1,115 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the executor requests run on, picked with --executor.
+ * platform is the fixed pool of --threads platform threads (1000 by default),
+ * virtual starts one virtual thread per connection (needs JDK 21 or later).
+ *
+ * The platform pool waits with at most --queue-size connections (2000, 0 for
+ * no limit). What happens to more is picked with --overload:
+ * reject answers the new connection 503 right away,
+ * shed-oldest answers 503 to the one that waited longest and queues the new one,
+ * fair takes the queue round robin by client address and, when full,
+ * pushes out the newest connection of the client with the most waiting.
+ */
+class Workers {
+	private Workers() {
+	}
+
+	/**
+	 * A connection waiting for a worker, it can be turned away.
+	 */
+	interface Task extends Runnable {
+		/**
+		 * Who it is for, tasks of one client are queued fairly against the others.
+		 */
+		Object client();
+
+		/**
+		 * Answers 503 and closes, called instead of run when we are overloaded.
+		 */
+		void reject();
+	}
+
+	public static ExecutorService create(ProxyConfig config) {
+		String mode = config.get("executor", "platform");
+		if (mode.equalsIgnoreCase("virtual")) {
+			ExecutorService virtual = virtualThreadPerTask();
+			if (virtual != null) {
+				return virtual;
+			}
+			System.err.println("Virtual threads need JDK 21 or later, using platform threads");
+		} else if (!mode.equalsIgnoreCase("platform")) {
+			throw new IllegalArgumentException("Unknown executor: " + mode);
+		}
+		// At any time there can be max of 1000 thread
+		// We dont want to take all the resource
+		int threads = config.getInt("threads", 1000);
+		int queueSize = config.getInt("queue-size", 2000);
+		String overload = config.get("overload", "reject").toLowerCase();
+		BlockingQueue<Runnable> queue;
+		RejectedExecutionHandler handler;
+		switch (overload) {
+		case "reject":
+			queue = bounded(queueSize);
+			handler = (task, executor) -> reject(task);
+			break;
+		case "shed-oldest":
+			queue = bounded(queueSize);
+			handler = Workers::shedOldest;
+			break;
+		case "fair":
+			queue = queueSize > 0 ? new FairQueue(queueSize) : new LinkedBlockingQueue<>();
+			handler = (task, executor) -> reject(task);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown overload policy: " + overload);
+		}
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, handler);
+	}
+
+	private static BlockingQueue<Runnable> bounded(int queueSize) {
+		return queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new LinkedBlockingQueue<>();
+	}
+
+	private static void reject(Runnable task) {
+		if (!(task instanceof Task)) {
+			throw new RejectedExecutionException("Workers are overloaded");
+		}
+		((Task) task).reject();
+	}
+
+	// the one that waited longest has the least chance to still be useful
+	private static void shedOldest(Runnable task, ThreadPoolExecutor executor) {
+		if (executor.isShutdown()) {
+			reject(task);
+			return;
+		}
+		Runnable oldest = executor.getQueue().poll();
+		if (oldest != null) {
+			reject(oldest);
+		}
+		if (!executor.getQueue().offer(task)) {
+			reject(task);
+		}
+	}
+
+	// looked up by reflection so the proxy still compiles and runs on older JDKs
+	private static ExecutorService virtualThreadPerTask() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}